@@ -0,0 +1,82 @@
+package ch.fmi.benchmark;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+
+import ch.fmi.util.PointCloud;
+
+/**
+ * Reproducible synthetic data for the benchmarks. All generators take a seed,
+ * so that every run measures the same input.
+ */
+public final class SyntheticData {
+
+	public static final long SEED = 42;
+
+	private SyntheticData() {
+		// avoid instantiation of utility class
+	}
+
+	/**
+	 * Returns {@code n} beads uniformly distributed in a volume of the given
+	 * size, with a random quality between 100 and 1000.
+	 */
+	public static PointCloud beads(int n, double width, double height,
+		double depth, long seed)
+	{
+		Random random = new Random(seed);
+		PointCloud beads = new PointCloud(n);
+		for (int i = 0; i < n; i++) {
+			beads.add(random.nextDouble() * width, random.nextDouble() * height,
+				random.nextDouble() * depth, 100 + 900 * random.nextDouble());
+		}
+		return beads;
+	}
+
+	/**
+	 * Returns {@code beads} transformed by the row-packed 3 x 4
+	 * {@code affine}, with Gaussian localization noise of standard deviation
+	 * {@code jitter}.
+	 */
+	public static PointCloud transform(PointCloud beads, double[] affine,
+		double jitter, long seed)
+	{
+		Random random = new Random(seed);
+		PointCloud transformed = new PointCloud(beads.size());
+		double[] p = new double[3];
+		for (int i = 0; i < beads.size(); i++) {
+			beads.localize(i, p);
+			double[] q = new double[3];
+			for (int r = 0; r < 3; r++) {
+				q[r] = affine[4 * r] * p[0] + affine[4 * r + 1] * p[1] + affine[4 * r +
+					2] * p[2] + affine[4 * r + 3] + jitter * random.nextGaussian();
+			}
+			transformed.add(q[0], q[1], q[2], beads.quality(i));
+		}
+		return transformed;
+	}
+
+	/**
+	 * Returns a planar image of 8-bit, 16-bit or 32-bit ({@code bits}) pixels
+	 * filled with uniform noise.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static Img<? extends RealType<?>> noise(int bits, long seed,
+		long... dims)
+	{
+		Img img = bits == 8 ? PlanarImgs.unsignedBytes(dims) : bits == 16
+			? PlanarImgs.unsignedShorts(dims) : PlanarImgs.floats(dims);
+		double max = bits == 32 ? 1 : (1 << bits) - 1;
+		Random random = new Random(seed);
+		Cursor<? extends RealType<?>> cursor = img.cursor();
+		while (cursor.hasNext()) {
+			double v = random.nextDouble() * max;
+			cursor.next().setReal(bits == 32 ? v : Math.floor(v));
+		}
+		return img;
+	}
+}
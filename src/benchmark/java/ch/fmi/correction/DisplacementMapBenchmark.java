@@ -0,0 +1,79 @@
+package ch.fmi.correction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.fmi.util.CoarseGrid;
+
+/**
+ * Generation of the dx, dy and dz maps of a 3D affine transform for a
+ * 1024 x 1024 x 64 image, at every pixel or on a coarse grid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DisplacementMapBenchmark {
+
+	private static final long[] DIMS = { 1024, 1024, 64 };
+
+	@Param({ "1", "8" })
+	private int gridStep;
+
+	private double[] matrix;
+	private Object[][] planes;
+	private int width;
+	private int height;
+	private ExecutorService executor;
+	private int threads;
+
+	@Setup
+	public void setup() {
+		AffineTransform3D transform = new AffineTransform3D();
+		transform.rotate(2, 0.01);
+		transform.scale(1.002);
+		transform.translate(1.5, -2.0, 0.5);
+		matrix = DisplacementMap.displacementMatrix(transform);
+		long[] gridDims = CoarseGrid.dimensions(DIMS, gridStep);
+		width = (int) gridDims[0];
+		height = (int) gridDims[1];
+		planes = new Object[3][(int) gridDims[2]];
+		for (Object[] map : planes) {
+			for (int z = 0; z < map.length; z++) {
+				map[z] = new double[width * height];
+			}
+		}
+		threads = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public Object[][] fill() {
+		DisplacementMap.fill(matrix, gridStep, width, height, planes, executor, 4 *
+			threads);
+		return planes;
+	}
+}
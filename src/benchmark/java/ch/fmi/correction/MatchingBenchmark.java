@@ -0,0 +1,93 @@
+package ch.fmi.correction;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.fmi.benchmark.SyntheticData;
+import ch.fmi.util.PointCloud;
+import fiji.plugin.trackmate.SpotCollection;
+import mpicbg.models.AffineModel3D;
+import process.ComparePair;
+
+/**
+ * Conversion of detected spots to point clouds, and matching of two channels
+ * whose beads differ by a small affine transform plus localization noise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchingBenchmark {
+
+	/** A slight magnification and rotation, plus a shift. */
+	private static final double[] AFFINE = { 1.002, -0.004, 0, 1.5, 0.004,
+		1.002, 0, -2.0, 0, 0, 1.0, 0.5 };
+
+	@Param({ "1000", "10000", "100000" })
+	private int numBeads;
+
+	private SpotCollection spots1;
+	private SpotCollection spots2;
+	private List<PointCloud> clouds;
+	private ExecutorService executor;
+	private int threads;
+
+	@Setup
+	public void setup() {
+		// constant bead density in a 100 slices deep volume
+		double size = Math.sqrt(numBeads * 1000.0);
+		PointCloud beads = SyntheticData.beads(numBeads, size, size, 100,
+			SyntheticData.SEED);
+		PointCloud moved = SyntheticData.transform(beads, AFFINE, 0.1,
+			SyntheticData.SEED);
+		spots1 = beads.toSpots(2.0);
+		spots2 = moved.toSpots(2.0);
+		clouds = Arrays.asList(beads, moved);
+		threads = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public List<PointCloud> fromSpots() {
+		return Arrays.asList(PointCloud.fromSpots(spots1, false), PointCloud
+			.fromSpots(spots2, false));
+	}
+
+	@Benchmark
+	public Vector<ComparePair> descriptorMatching() {
+		DescriptorMatcher matcher = new DescriptorMatcher(executor, 4 * threads);
+		return matcher.match(clouds, new AffineModel3D());
+	}
+
+	@Benchmark
+	public Vector<ComparePair> nearestNeighborMatching() {
+		NearestNeighborMatcher matcher = new NearestNeighborMatcher(executor, 4 *
+			threads);
+		matcher.setMaxDistance(5.0);
+		return matcher.match(clouds, new AffineModel3D());
+	}
+}
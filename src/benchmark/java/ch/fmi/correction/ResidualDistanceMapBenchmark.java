@@ -0,0 +1,90 @@
+package ch.fmi.correction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.fmi.benchmark.SyntheticData;
+import ch.fmi.util.CoarseGrid;
+import ch.fmi.util.PointCloud;
+
+/**
+ * Rasterization of the residuals of 1000 beads into a 512 x 512 x 32 map,
+ * with nearest neighbor ({@code numNeighbors = 1}) or inverse distance
+ * weighted interpolation, at every pixel or on a coarse grid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResidualDistanceMapBenchmark {
+
+	private static final long[] DIMS = { 512, 512, 32 };
+
+	@Param({ "1", "5" })
+	private int numNeighbors;
+
+	@Param({ "1", "8" })
+	private int gridStep;
+
+	private KDTree<double[]> tree;
+	private PlanarImg<DoubleType, DoubleArray> img;
+	private ExecutorService executor;
+	private int threads;
+
+	@Setup
+	public void setup() {
+		PointCloud beads = SyntheticData.beads(1000, DIMS[0], DIMS[1], DIMS[2],
+			SyntheticData.SEED);
+		Random random = new Random(SyntheticData.SEED);
+		List<double[]> residuals = new ArrayList<>();
+		List<RealPoint> positions = new ArrayList<>();
+		for (int i = 0; i < beads.size(); i++) {
+			residuals.add(new double[] { random.nextGaussian(), random
+				.nextGaussian(), random.nextGaussian() });
+			positions.add(new RealPoint(beads.x(i), beads.y(i), beads.z(i)));
+		}
+		tree = new KDTree<>(residuals, positions);
+		long[] gridDims = CoarseGrid.dimensions(DIMS, gridStep);
+		img = PlanarImgs.doubles(gridDims[0], gridDims[1], gridDims[2], 3);
+		threads = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public PlanarImg<DoubleType, DoubleArray> rasterize() {
+		ResidualDistanceMap.rasterize(tree, numNeighbors, numNeighbors > 1 ? 2 : 0,
+			gridStep, img, executor, 4 * threads);
+		return img;
+	}
+}
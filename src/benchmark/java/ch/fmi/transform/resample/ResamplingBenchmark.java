@@ -0,0 +1,96 @@
+package ch.fmi.transform.resample;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.fmi.benchmark.SyntheticData;
+
+/**
+ * Affine resampling of 8, 16 and 32-bit images of 2048 x 2048 (2D) or
+ * 512 x 512 x 64 (3D) pixels by a small rotation, magnification and subpixel
+ * shift, as for chromatic aberration correction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResamplingBenchmark {
+
+	@Param({ "8", "16", "32" })
+	private int bits;
+
+	@Param({ "2", "3" })
+	private int numDimensions;
+
+	private RandomAccessibleInterval<? extends RealType<?>> source;
+	private RandomAccessibleInterval<? extends RealType<?>> target;
+	private AffineGet transform;
+	private ExecutorService executor;
+	private ResamplingEngine engine;
+
+	@Setup
+	public void setup() {
+		long[] dims = numDimensions == 2 ? new long[] { 2048, 2048 } : new long[] {
+			512, 512, 64 };
+		source = SyntheticData.noise(bits, SyntheticData.SEED, dims);
+		target = SyntheticData.noise(bits, SyntheticData.SEED + 1, dims);
+		if (numDimensions == 2) {
+			AffineTransform2D affine = new AffineTransform2D();
+			affine.rotate(0.01);
+			affine.scale(1.002);
+			affine.translate(1.3, -0.7);
+			transform = affine;
+		}
+		else {
+			AffineTransform3D affine = new AffineTransform3D();
+			affine.rotate(2, 0.01);
+			affine.scale(1.002);
+			affine.translate(1.3, -0.7, 0.4);
+			transform = affine;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool(threads);
+		engine = new ResamplingEngine(executor, 4 * threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Benchmark
+	public Object resample() {
+		resample(source, target);
+		return target;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends RealType<T>> void resample(
+		RandomAccessibleInterval<?> from, RandomAccessibleInterval<?> to)
+	{
+		engine.resample((RandomAccessibleInterval<T>) from, transform,
+			(RandomAccessibleInterval<T>) to);
+	}
+}
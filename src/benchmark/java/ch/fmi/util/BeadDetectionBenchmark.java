@@ -0,0 +1,67 @@
+package ch.fmi.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.Model;
+import ij.ImagePlus;
+
+/**
+ * LoG bead detection with {@link Beads#getSpotModel} on bead stacks of
+ * increasing size, with a constant bead density.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BeadDetectionBenchmark {
+
+	@Param({ "128", "256", "512" })
+	private int size;
+
+	@Param({ "32" })
+	private int depth;
+
+	private ImagePlus imp;
+
+	@Setup
+	public void setup() {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime
+			.getRuntime().availableProcessors());
+		try {
+			BeadPhantom phantom = new BeadPhantom(executor, 16);
+			phantom.setDimensions(size, size, depth);
+			phantom.setSigma(1.5, 1.5);
+			phantom.setReadNoise(10);
+			phantom.setSeed(42);
+			imp = phantom.render(phantom.beads(size * size / 500), Arrays.asList(
+				(AffineGet) null));
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	@Benchmark
+	public Model getSpotModel() {
+		return Beads.getSpotModel(imp, 1, 2.0, 50.0);
+	}
+}
@@ -0,0 +1,353 @@
+package ch.fmi.correction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.io.TransformRegistryService;
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Applies channel transformations to all matching images in a folder,
+ * running {@link ChannelTransformer} on each of them. Loading, transforming
+ * and saving run in separate stages connected by bounded queues, so reading
+ * the next image and writing the previous one overlap with the
+ * transformation of the current one. Does not require a display.
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI > Multi-Channel Image Correction > Batch Apply Channel Transformation")
+public class BatchChannelTransformer extends ContextCommand {
+
+	@Parameter(style = "directory")
+	private File inputDirectory;
+
+	@Parameter(label = "File name pattern (glob)")
+	private String filePattern = "*.tif";
+
+	@Parameter(label = "Channel 1 transform file", required = false)
+	private File transformFile1;
+
+	@Parameter(label = "Channel 2 transform file", required = false)
+	private File transformFile2;
+
+	@Parameter(label = "Channel 3 transform file", required = false)
+	private File transformFile3;
+
+	@Parameter(label = "Transform container (instead of files)", required = false)
+	private File transformContainer;
+
+	@Parameter(label = "Transform name in container (C1-, C2-, ... prepended)", required = false)
+	private String transformName;
+
+	@Parameter
+	private Boolean transformCalibrated = true;
+
+	@Parameter(style = "directory")
+	private File outputDirectory;
+
+	@Parameter(label = "Overwrite existing output files")
+	private Boolean overwrite = false;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter(label = "Number of images buffered between stages", min = "1")
+	private Integer queueCapacity = 2;
+
+	@Parameter
+	private CommandService commandService;
+
+	@Parameter
+	private TransformRegistryService registry;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	private static final Item END = new Item(null);
+
+	private int processed;
+	private long processedBytes;
+	private Metrics metrics = Metrics.DISABLED;
+
+	@Override
+	public void run() {
+		metrics = metricsService.start("Batch Apply Channel Transformation");
+		try {
+			process();
+		}
+		finally {
+			if (isCanceled()) metrics.count("failures", 1);
+			metricsService.finish(metrics);
+		}
+	}
+
+	private void process() {
+		if (!inputDirectory.isDirectory() || !outputDirectory.isDirectory()) {
+			cancel("Input and output directories must exist.");
+			return;
+		}
+		try {
+			if (inputDirectory.toPath().toRealPath().equals(outputDirectory.toPath()
+				.toRealPath()))
+			{
+				cancel("Output directory must differ from the input directory.");
+				return;
+			}
+		}
+		catch (IOException exc) {
+			cancel("Error when resolving directories: " + exc.getMessage());
+			return;
+		}
+		if (transformContainer != null && (transformName == null || transformName
+			.isEmpty()))
+		{
+			cancel("A transform name is required with a transform container.");
+			return;
+		}
+		File[] files = listFiles();
+		CorrectionProfile profile;
+		long stage = metrics.start();
+		try {
+			profile = transformContainer != null ? openContainer()
+				: new CorrectionProfile(open(transformFile1), open(transformFile2),
+					open(transformFile3));
+			metrics.stop("opening transforms", stage);
+		}
+		catch (IOException exc) {
+			logService.error("Error when opening transforms", exc);
+			cancel("Error when opening transforms: " + exc.getMessage());
+			return;
+		}
+		if (profile == null) return; // canceled
+		boolean anyTransform = false;
+		for (int c = 0; c < profile.numChannels(); c++) {
+			anyTransform |= profile.affine(c) != null;
+		}
+		if (!anyTransform) {
+			cancel("No channel transform given.");
+			return;
+		}
+		logService.info("Processing " + files.length + " files matching " +
+			filePattern);
+
+		BlockingQueue<Item> loaded = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<Item> transformed = new ArrayBlockingQueue<>(queueCapacity);
+		Thread reader = new Thread(() -> read(files, loaded), "channel-correction-reader");
+		Thread writer = new Thread(() -> write(transformed), "channel-correction-writer");
+		long start = System.nanoTime();
+		reader.start();
+		writer.start();
+		try {
+			for (Item item = loaded.take(); item != END; item = loaded.take()) {
+				if (isCanceled()) continue; // drain the reader
+				transform(item, profile);
+				transformed.put(item);
+			}
+			transformed.put(END);
+			writer.join();
+		}
+		catch (InterruptedException exc) {
+			reader.interrupt();
+			writer.interrupt();
+			Thread.currentThread().interrupt();
+			cancel("Interrupted");
+			return;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		logService.info(String.format(
+			"Processed %d files in %.1f s (%.2f files/s, %.1f MB/s)", processed,
+			seconds, processed / seconds, processedBytes / 1e6 / seconds));
+		metrics.count("files", processed);
+		metrics.count("bytes processed", processedBytes);
+	}
+
+	private File[] listFiles() {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" +
+			filePattern);
+		File[] files = inputDirectory.listFiles(f -> f.isFile() && matcher
+			.matches(f.toPath().getFileName()));
+		if (files == null) return new File[0];
+		Arrays.sort(files);
+		// e.g. a.tif and a.tiff would both be saved as a.tif
+		Map<String, File> outputs = new HashMap<>();
+		List<File> unique = new ArrayList<>();
+		for (File file : files) {
+			File previous = outputs.putIfAbsent(outputName(file), file);
+			if (previous != null) {
+				logService.error("Skipping " + file.getName() + ": its output " +
+					outputName(file) + " would overwrite that of " + previous.getName());
+				continue;
+			}
+			unique.add(file);
+		}
+		return unique.toArray(new File[0]);
+	}
+
+	private static String outputName(File file) {
+		return file.getName().replaceFirst("\\.[^.]*$", "") + ".tif";
+	}
+
+	private AffineGet open(File transformFile) throws IOException {
+		if (transformFile == null) return null;
+		return registry.get(transformFile.toPath());
+	}
+
+	/**
+	 * Creates a profile from the transforms named C1-, C2- and C3- plus
+	 * {@link #transformName} in {@link #transformContainer}. Trailing channels
+	 * may be missing (e.g. C3- for two-channel images), but not the first or
+	 * channels in between; in that case the command is canceled and
+	 * {@code null} returned.
+	 */
+	private CorrectionProfile openContainer() throws IOException {
+		AffineGet[] transforms = new AffineGet[3];
+		int last = -1;
+		for (int c = 0; c < transforms.length; c++) {
+			transforms[c] = registry.get(transformContainer.toPath(), "C" + (c + 1) +
+				"-" + transformName);
+			if (transforms[c] != null) last = c;
+		}
+		for (int c = 0; c <= Math.max(0, last); c++) {
+			if (transforms[c] == null) {
+				cancel("No transform named C" + (c + 1) + "-" + transformName +
+					" in " + transformContainer);
+				return null;
+			}
+		}
+		return new CorrectionProfile(transforms);
+	}
+
+	// -- Pipeline stages --
+
+	private void read(File[] files, BlockingQueue<Item> loaded) {
+		try {
+			for (File file : files) {
+				if (isCanceled()) break;
+				Item item = new Item(file);
+				long t0 = System.nanoTime();
+				try {
+					item.imp = IJ.openImage(file.getAbsolutePath());
+				}
+				catch (RuntimeException exc) {
+					logService.error("Error when opening " + file, exc);
+				}
+				item.readTime = System.nanoTime() - t0;
+				metrics.stop("reading", t0);
+				if (item.imp == null) {
+					logService.error("Could not open " + file);
+					continue;
+				}
+				loaded.put(item);
+			}
+			loaded.put(END);
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void transform(Item item, CorrectionProfile profile) {
+		long t0 = System.nanoTime();
+		try {
+			// no pre- and postprocessing: inputs are complete, and results are saved
+			// instead of displayed; the shared profile keeps the fused transforms
+			// of all images with the same calibration
+			CommandModule module = commandService.run(ChannelTransformer.class,
+				false, //
+				"imp", item.imp, //
+				"transformCalibrated", transformCalibrated, //
+				"transformChannel1", false, //
+				"transformChannel2", false, //
+				"transformChannel3", false, //
+				"useProfile", true, //
+				"profile", profile, //
+				"numThreads", numThreads).get();
+			item.result = (ImagePlus) module.getOutput("resultImp");
+		}
+		catch (ExecutionException exc) {
+			logService.error("Error when transforming " + item.file, exc);
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		item.transformTime = System.nanoTime() - t0;
+		metrics.stop("transformation", t0);
+	}
+
+	private void write(BlockingQueue<Item> transformed) {
+		try {
+			for (Item item = transformed.take(); item != END; item = transformed
+				.take())
+			{
+				if (item.result == null) continue;
+				long t0 = System.nanoTime();
+				String name = outputName(item.file);
+				File output = new File(outputDirectory, name);
+				if (output.exists() && !overwrite) {
+					logService.error("Not overwriting existing " + output);
+					continue;
+				}
+				try {
+					if (!IJ.saveAsTiff(item.result, output.getAbsolutePath()))
+					{
+						logService.error("Could not save " + name);
+						continue;
+					}
+				}
+				catch (RuntimeException exc) {
+					logService.error("Error when saving " + name, exc);
+					continue;
+				}
+				long writeTime = System.nanoTime() - t0;
+				metrics.stop("writing", t0);
+				processed++;
+				processedBytes += item.imp.getSizeInBytes();
+				logService.info(String.format(
+					"%s: read %d ms, transform %d ms, write %d ms", item.file.getName(),
+					item.readTime / 1000000, item.transformTime / 1000000, writeTime /
+						1000000));
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Item {
+
+		private final File file;
+		private ImagePlus imp;
+		private ImagePlus result;
+		private long readTime;
+		private long transformTime;
+
+		private Item(File file) {
+			this.file = file;
+		}
+	}
+}
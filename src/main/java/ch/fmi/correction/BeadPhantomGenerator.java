@@ -0,0 +1,210 @@
+package ch.fmi.correction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.io.TransformContainer;
+import ch.fmi.util.BeadPhantom;
+import ch.fmi.util.PointCloud;
+import ij.ImagePlus;
+
+/**
+ * Generates a multi-channel bead image in which each channel but the first
+ * is displaced by a random, known affine transform (a rotation about the
+ * image center, a lateral magnification and a shift). The transforms that
+ * correct the channels are registered and optionally saved, named like those
+ * of {@link SpotCollectionAlignment}, so that measured transforms and
+ * corrected images can be compared with the ground truth.
+ */
+@Plugin(type = Command.class,
+	menuPath = "FMI > Multi-Channel Image Correction > Generate Bead Phantom")
+public class BeadPhantomGenerator extends ContextCommand {
+
+	@Parameter(min = "1")
+	private Integer width = 512;
+
+	@Parameter(min = "1")
+	private Integer height = 512;
+
+	@Parameter(label = "Depth (1 = 2D)", min = "1")
+	private Integer depth = 32;
+
+	@Parameter(label = "Number of channels", min = "1", max = "4")
+	private Integer numChannels = 3;
+
+	@Parameter(label = "Pixel width (calibrated units)")
+	private Double pixelWidth = 0.1;
+
+	@Parameter(label = "Voxel depth (calibrated units)")
+	private Double pixelDepth = 0.3;
+
+	@Parameter(label = "Bead density (per million voxels)")
+	private Double density = 20.0;
+
+	@Parameter(label = "Lateral PSF sigma (calibrated units)")
+	private Double lateralSigma = 0.1;
+
+	@Parameter(label = "Axial PSF sigma (calibrated units)")
+	private Double axialSigma = 0.3;
+
+	@Parameter(label = "Mean bead intensity")
+	private Double intensity = 1000.0;
+
+	@Parameter
+	private Double background = 100.0;
+
+	@Parameter(label = "Poisson noise")
+	private Boolean poissonNoise = true;
+
+	@Parameter(label = "Read noise (standard deviation)", min = "0")
+	private Double readNoise = 5.0;
+
+	@Parameter(label = "Max. channel shift (calibrated units)", min = "0")
+	private Double maxShift = 0.5;
+
+	@Parameter(label = "Max. channel rotation (degrees)", min = "0")
+	private Double maxRotation = 0.5;
+
+	@Parameter(label = "Max. channel magnification difference", min = "0")
+	private Double maxMagnification = 0.005;
+
+	@Parameter
+	private Long seed = 1L;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter(label = "Name to store transforms")
+	private String transformName = "phantom";
+
+	@Parameter(label = "Save transforms to container file (optional)",
+		style = "save", required = false)
+	private File transformFile;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private ImagePlus phantom;
+
+	@Parameter
+	private ObjectService objectService;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Override
+	public void run() {
+		int numBeads = (int) Math.round(density * width * height * depth / 1e6);
+		double[] spacing = { pixelWidth, pixelWidth, pixelDepth };
+		double[] center = { (width - 1) * spacing[0] / 2, (height - 1) *
+			spacing[1] / 2, (depth - 1) * spacing[2] / 2 };
+		Random random = new Random(seed);
+		List<AffineGet> displacements = new ArrayList<>();
+		displacements.add(null);
+		for (int c = 1; c < numChannels; c++) {
+			displacements.add(displacement(random, center));
+		}
+
+		Metrics metrics = metricsService.start("Generate Bead Phantom");
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			BeadPhantom generator = new BeadPhantom(executor, 4 * threads);
+			generator.setDimensions(width, height, depth);
+			generator.setSpacing(spacing);
+			generator.setSigma(lateralSigma, axialSigma);
+			generator.setIntensity(intensity);
+			generator.setBackground(background);
+			generator.setPoissonNoise(poissonNoise);
+			generator.setReadNoise(readNoise);
+			generator.setSeed(seed);
+			long start = System.nanoTime();
+			PointCloud beads = generator.beads(numBeads);
+			phantom = generator.render(beads, displacements);
+			metrics.stop("rendering", start);
+			metrics.count("beads", numBeads);
+			metrics.count("voxels written", (long) width * height * depth *
+				numChannels);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			logService.info(String.format(
+				"Rendered %d beads in %d channels in %.1f s (%.1f Mvoxels/s)", numBeads,
+				numChannels, seconds, (double) width * height * depth * numChannels /
+					1e6 / seconds));
+		}
+		finally {
+			executor.shutdown();
+		}
+		phantom.setTitle("Bead phantom (" + transformName + ")");
+
+		// the correction of each channel undoes its displacement
+		TransformContainer container = new TransformContainer();
+		for (int c = 0; c < numChannels; c++) {
+			AffineGet displacement = displacements.get(c);
+			AffineGet correction = displacement == null ? identity()
+				: displacement.inverse();
+			String name = "C" + (c + 1) + "-" + transformName;
+			objectService.addObject(correction, name);
+			container.put(name, correction);
+			logService.info("Known transform of channel " + (c + 1) + ": " +
+				correction);
+		}
+		if (transformFile != null) {
+			try {
+				container.write(transformFile.toPath());
+			}
+			catch (IOException exc) {
+				logService.error("Error when saving transforms", exc);
+			}
+		}
+		metricsService.finish(metrics);
+	}
+
+	/**
+	 * Returns a random rotation about {@code center} combined with a lateral
+	 * magnification and a shift, each uniformly distributed up to its maximum.
+	 */
+	private AffineGet displacement(Random random, double[] center) {
+		double angle = Math.toRadians(maxRotation * (2 * random.nextDouble() - 1));
+		double scale = 1 + maxMagnification * (2 * random.nextDouble() - 1);
+		double[] shift = new double[3];
+		for (int d = 0; d < shift.length; d++) {
+			shift[d] = maxShift * (2 * random.nextDouble() - 1);
+		}
+		double a = scale * Math.cos(angle), b = scale * Math.sin(angle);
+		double tx = center[0] + shift[0] - a * center[0] + b * center[1];
+		double ty = center[1] + shift[1] - b * center[0] - a * center[1];
+		if (depth == 1) {
+			AffineTransform2D affine = new AffineTransform2D();
+			affine.set(a, -b, tx, b, a, ty);
+			return affine;
+		}
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.set(a, -b, 0, tx, b, a, 0, ty, 0, 0, 1, shift[2]);
+		return affine;
+	}
+
+	private AffineGet identity() {
+		return depth == 1 ? new AffineTransform2D() : new AffineTransform3D();
+	}
+}
@@ -1,6 +1,7 @@
 
 package ch.fmi.correction;
 
+import java.awt.Rectangle;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,6 +18,8 @@ import org.scijava.plugin.Plugin;
 import org.scijava.widget.Button;
 import org.scijava.widget.NumberWidget;
 
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
 import ch.fmi.util.Beads;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SpotCollection;
@@ -24,7 +27,9 @@ import fiji.plugin.trackmate.visualization.DummySpotColorGenerator;
 import fiji.plugin.trackmate.visualization.TrackMateModelView;
 import fiji.plugin.trackmate.visualization.hyperstack.SpotOverlay;
 import ij.ImagePlus;
+import ij.gui.ImageCanvas;
 import ij.gui.Overlay;
+import ij.gui.Roi;
 import ij.measure.Measurements;
 
 @Plugin(type = Command.class,
@@ -44,6 +49,12 @@ public class ChannelBeadDetection extends InteractiveImageCommand implements Ini
 	@Parameter(min = "0", max = "1000", stepSize = "0.1", style = NumberWidget.SLIDER_STYLE)
 	private Double threshold;
 
+	@Parameter(label = "Preview around current view only")
+	private Boolean previewOnly = true;
+
+	@Parameter(label = "Preview slices above and below current slice", min = "0")
+	private Integer previewDepth = 5;
+
 	@Parameter(required = false)
 	private String name; // for saving the output to ObjectService
 
@@ -59,23 +70,73 @@ public class ChannelBeadDetection extends InteractiveImageCommand implements Ini
 	@Parameter
 	private LogService logService;
 
+	@Parameter
+	private MetricsService metricsService;
+
+	/**
+	 * Candidates are detected below the current threshold, so that lowering
+	 * the threshold a bit does not require a new detection either.
+	 */
+	private static final double CANDIDATE_THRESHOLD_FACTOR = 0.5;
+
 	private SpotCollection spots;
+	private boolean previewed;
+	private Candidates candidates; // of the latest detection only
 	private boolean initialized = false;
 
 	@Override
 	public void run() {
-		// TODO check which parameters changed
-		// if channel or radius or threshold changed: update model
 		// TODO safeguard against too unreasonable parameters (e.g. radius << pixel spacing...)
-		Model model = Beads.getSpotModel(inputImp, channel, radius, threshold);
+		// the LoG filtering only depends on channel, radius and processed region:
+		// if just the threshold changed, filter the cached candidates by quality
+		// instead
+		Rectangle region = null;
+		int zMin = 0;
+		int zMax = inputImp.getNSlices() - 1;
+		if (previewOnly) {
+			region = previewRegion();
+			zMin = inputImp.getZ() - 1 - previewDepth;
+			zMax = inputImp.getZ() - 1 + previewDepth;
+		}
+		String key = channel + "/" + radius + "/" + region + "/" + zMin + "/" + zMax;
+		Metrics metrics = metricsService.start("Interactive Bead Detection");
+		Candidates cached = candidates;
+		if (cached == null || !cached.key.equals(key) || threshold < cached.threshold) {
+			double candidateThreshold = threshold * CANDIDATE_THRESHOLD_FACTOR;
+			long start = metrics.start();
+			cached = new Candidates(Beads.getSpotModel(inputImp, channel, radius,
+				candidateThreshold, Runtime.getRuntime().availableProcessors(), region,
+				zMin, zMax).getSpots(), key, candidateThreshold);
+			metrics.stop("detection", start);
+			candidates = cached;
+		}
+		long start = metrics.start();
+		spots = Beads.filterByQuality(cached.spots, threshold);
+		metrics.stop("filtering", start);
+		metrics.count("spots detected", spots.getNSpots(false));
+		previewed = previewOnly;
+		Model model = new Model();
+		model.setSpots(spots, false);
 		setOverlay(model);
-		spots = model.getSpots();
 		logService.info("Number of spots in current collection: " + spots.getNSpots(false));
+		metricsService.finish(metrics);
 		if (!initialized) {
 			initialized = true;
 		}
 	}
 
+	/**
+	 * Returns the bounds of the ROI if there is one, else the visible part of
+	 * the image (or {@code null} if not displayed), so that the preview cost
+	 * does not depend on the image size.
+	 */
+	private Rectangle previewRegion() {
+		Roi roi = inputImp.getRoi();
+		if (roi != null && roi.isArea()) return roi.getBounds();
+		ImageCanvas canvas = inputImp.getCanvas();
+		return canvas == null ? null : canvas.getSrcRect();
+	}
+
 	private void setOverlay(Model model) {
 		SpotOverlay ovl = new SpotOverlay(model, inputImp, defaultDisplaySettings());
 		inputImp.setOverlay(new Overlay(ovl));
@@ -99,10 +160,29 @@ public class ChannelBeadDetection extends InteractiveImageCommand implements Ini
 		return settings;
 	}
 
+	private static class Candidates {
+
+		private final SpotCollection spots;
+		private final String key;
+		private final double threshold;
+
+		private Candidates(SpotCollection spots, String key, double threshold) {
+			this.spots = spots;
+			this.key = key;
+			this.threshold = threshold;
+		}
+	}
+
 	// -- Callback methods --
 
 	@SuppressWarnings("unused") // keepButton callback
 	private void saveCurrentDetections() {
+		if (previewed) {
+			// the preview covers part of the image only
+			spots = Beads.getSpotCollection(inputImp, channel, radius, threshold);
+			previewed = false;
+			logService.info("Number of spots in full image: " + spots.getNSpots(false));
+		}
 		objectService.addObject(spots, name);
 	}
 
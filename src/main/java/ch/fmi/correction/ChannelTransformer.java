@@ -1,10 +1,13 @@
 
 package ch.fmi.correction;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.scijava.Initializable;
 import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.command.DynamicCommand;
 import org.scijava.convert.ConvertService;
@@ -12,25 +15,35 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.resample.InPlaceResampler;
+import ch.fmi.transform.resample.Planes;
+import ch.fmi.transform.resample.ResamplingEngine;
+import ij.CompositeImage;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
 import ij.process.LUT;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.ops.OpService;
+import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.img.Img;
 import net.imglib2.realtransform.AffineGet;
-import net.imglib2.realtransform.AffineRandomAccessible;
-import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
-@Plugin(type = Command.class, menuPath = "FMI > Multi-Channel Image Correction > Apply Channel Transformation")
-public class ChannelTransformer<T extends RealType<T>> extends DynamicCommand implements Initializable {
+@Plugin(type = Command.class, headless = true, menuPath = "FMI > Multi-Channel Image Correction > Apply Channel Transformation")
+public class ChannelTransformer<T extends RealType<T> & NativeType<T>> extends DynamicCommand implements Initializable {
 	// TODO decide if we should add an Identity transform (if absent)
 	// to ObjectService in an initialize() method (DynamicCommand)
 
@@ -58,6 +71,18 @@ public class ChannelTransformer<T extends RealType<T>> extends DynamicCommand im
 	@Parameter(required = false)
 	private AffineGet affineChannel3;
 
+	@Parameter(label = "Use correction profile (overrides channel transforms)")
+	private Boolean useProfile = false;
+
+	@Parameter(required = false)
+	private CorrectionProfile profile;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter(label = "Correct in place (overwrites the input image)")
+	private Boolean inPlace = false;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private ImagePlus resultImp;
 
@@ -73,28 +98,243 @@ public class ChannelTransformer<T extends RealType<T>> extends DynamicCommand im
 	@Parameter
 	private LogService logService;
 
+	@Parameter
+	private StatusService statusService;
+
+	@Parameter
+	private MetricsService metricsService;
+
 	@Override
 	public void run() {
+		Metrics metrics = metricsService.start("Apply Channel Transformation");
+		CorrectionProfile correction = useProfile && profile != null ? profile
+			: new CorrectionProfile(transformChannel1 ? affineChannel1 : null,
+				transformChannel2 ? affineChannel2 : null, transformChannel3
+					? affineChannel3 : null);
+		boolean planar = Planes.wrap(imp, 0) != null;
+		if (inPlace && !planar) {
+			logService.warn(
+				"RGB images and virtual stacks cannot be corrected in place, creating a copy");
+		}
+		if (inPlace && planar) {
+			transformInPlace(correction, metrics);
+		}
+		else if (planar) {
+			transformPlanes(correction, metrics);
+		}
+		else {
+			transformDataset(correction, metrics);
+		}
+		metricsService.finish(metrics);
+	}
+
+	/**
+	 * Resamples the pixel arrays of {@link #imp} directly into those of a new
+	 * stack of the same type and layout, without converting to and from a
+	 * {@link Dataset}, so that the output planes are the only image memory
+	 * allocated.
+	 */
+	private void transformPlanes(CorrectionProfile correction, Metrics metrics) {
+		Calibration cal = imp.getCalibration();
+		double[] spacing = transformCalibrated ? new double[] { cal.pixelWidth,
+			cal.pixelHeight, cal.pixelDepth } : new double[] { 1, 1, 1 };
+		int nChannels = Math.min(3, imp.getNChannels());
+		AffineGet[] transforms = Arrays.copyOf(correction.pixelTransforms(
+			spacing), nChannels);
+		int depth = imp.getNSlices();
+		int frames = imp.getNFrames();
+		int planeSize = imp.getWidth() * imp.getHeight();
+
+		long stage = metrics.start();
+		ImageStack stack = imp.getStack();
+		ImageStack result = ImageStack.create(imp.getWidth(), imp.getHeight(),
+			nChannels * depth * frames, imp.getBitDepth());
+		resultImp = new ImagePlus(imp.getTitle() + "_corrected", result);
+		resultImp.setDimensions(nChannels, depth, frames);
+		for (int t = 1; t <= frames; t++) {
+			for (int z = 1; z <= depth; z++) {
+				for (int c = 1; c <= nChannels; c++) {
+					result.setSliceLabel(stack.getSliceLabel(imp.getStackIndex(c, z, t)),
+						resultImp.getStackIndex(c, z, t));
+				}
+			}
+		}
+		metrics.stop("allocation", stage);
+		metrics.count("bytes allocated", (long) result.getSize() * planeSize * imp
+			.getBytesPerPixel());
+
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		stage = metrics.start();
+		try {
+			ResamplingEngine engine = new ResamplingEngine(executor, 4 * threads);
+			for (int t = 0; t < frames; t++) {
+				for (int c = 0; c < nChannels; c++) {
+					final int volumeIndex = t * nChannels + c;
+					engine.setProgressListener((completed, total) -> statusService
+						.showProgress(volumeIndex * total + completed, frames * nChannels *
+							total));
+					AffineGet transform = transforms[c];
+					if (transform != null && depth == 1) {
+						transform = CorrectionProfile.toAffine2D(transform);
+					}
+					if (transform != null) {
+						if (t == 0) {
+							logService.info("Applying effective transform to channel index " + c + ": " + transform.toString());
+						}
+						engine.resample(Planes.wrap(imp, c, t), transform, Planes.wrap(
+							resultImp, c, t));
+					}
+					else {
+						for (int z = 1; z <= depth; z++) {
+							System.arraycopy(stack.getPixels(imp.getStackIndex(c + 1, z, t +
+								1)), 0, result.getPixels(resultImp.getStackIndex(c + 1, z, t +
+									1)), 0, planeSize);
+						}
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			statusService.clearStatus();
+		}
+		metrics.stop("resampling", stage);
+		metrics.count("voxels written", (long) result.getSize() * planeSize);
+
+		resultImp.setCalibration(cal.copy());
+		LUT[] luts = imp.getLuts();
+		if (nChannels > 1) {
+			CompositeImage composite = new CompositeImage(resultImp, imp
+				.isComposite() ? ((CompositeImage) imp).getMode()
+					: CompositeImage.COMPOSITE);
+			if (luts.length >= nChannels) {
+				composite.setLuts(Arrays.copyOf(luts, nChannels));
+			}
+			resultImp = composite;
+		}
+		else if (luts.length > 0) {
+			resultImp.setLut(luts[0]);
+		}
+	}
+
+	/**
+	 * Overwrites the planes of the transformed channels of {@link #imp} with
+	 * their corrected content, using a rolling buffer of a few planes per
+	 * channel instead of a second stack. Channels without a transform or with
+	 * an identity transform, and channels beyond the third, are not touched.
+	 */
+	private void transformInPlace(CorrectionProfile correction, Metrics metrics) {
+		Calibration cal = imp.getCalibration();
+		double[] spacing = transformCalibrated ? new double[] { cal.pixelWidth,
+			cal.pixelHeight, cal.pixelDepth } : new double[] { 1, 1, 1 };
+		int nChannels = Math.min(3, imp.getNChannels());
+		AffineGet[] transforms = Arrays.copyOf(correction.pixelTransforms(
+			spacing), nChannels);
+		int depth = imp.getNSlices();
+		int frames = imp.getNFrames();
+		int planeSize = imp.getWidth() * imp.getHeight();
+		ImageStack stack = imp.getStack();
+
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long stage = metrics.start();
+		long written = 0;
+		InPlaceResampler resampler;
+		try {
+			ResamplingEngine engine = new ResamplingEngine(executor, 4 * threads);
+			resampler = new InPlaceResampler(engine, threads);
+			for (int t = 0; t < frames; t++) {
+				for (int c = 0; c < nChannels; c++) {
+					AffineGet transform = transforms[c];
+					// identity channels (e.g. the reference) would be rewritten unchanged
+					if (transform == null || ResamplingEngine.isIdentity(transform)) continue;
+					if (depth == 1) {
+						transform = CorrectionProfile.toAffine2D(transform);
+					}
+					if (t == 0) {
+						logService.info("Applying effective transform to channel index " + c + " in place: " + transform.toString());
+					}
+					statusService.showProgress(t * nChannels + c, frames * nChannels);
+					Object[] planes = new Object[depth];
+					for (int z = 0; z < depth; z++) {
+						planes[z] = stack.getPixels(imp.getStackIndex(c + 1, z + 1, t + 1));
+					}
+					resampler.resample(planes, imp.getWidth(), imp.getHeight(), transform);
+					written += (long) depth * planeSize;
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			statusService.clearStatus();
+		}
+		metrics.stop("resampling", stage);
+		metrics.count("bytes allocated", (long) resampler.allocatedPlanes() *
+			planeSize * imp.getBytesPerPixel());
+		metrics.count("voxels written", written);
+
+		if (written > 0) {
+			imp.changes = true;
+			imp.updateAndDraw();
+		}
+		resultImp = imp;
+	}
+
+	/**
+	 * Transforms images that cannot be accessed as planes (RGB images and
+	 * virtual stacks) through a {@link Dataset}.
+	 */
+	private void transformDataset(CorrectionProfile correction, Metrics metrics) {
 		// use ImagePlus input and convertService(imp, Dataset.class)
+		long stage = metrics.start();
 		Dataset dataset = convertService.convert(imp, Dataset.class);
+		metrics.stop("conversion to Dataset", stage);
 
-		ArrayList<RandomAccessibleInterval<T>> transformedChannels = new ArrayList<>();
-		AffineTransform3D calibrationTransform = new AffineTransform3D();
-		if (transformCalibrated) {
-			calibrationTransform.scale(dataset.averageScale(0), dataset.averageScale(1), dataset.averageScale(2));
+		double[] spacing = transformCalibrated ? CorrectionProfile.pixelSpacing(dataset) : new double[] { 1, 1, 1 };
+		int nChannels = dataset.dimension(Axes.CHANNEL) > 2 ? 3 : 2;
+		AffineGet[] transforms = Arrays.copyOf(correction.pixelTransforms(
+			spacing), nChannels);
+
+		// allocate the stacked output (channels last) and resample directly into it
+		stage = metrics.start();
+		Img<T> output = createOutput(dataset, nChannels);
+		metrics.stop("allocation", stage);
+		metrics.count("bytes allocated", Intervals.numElements(output) * output
+			.firstElement().getBitsPerPixel() / 8);
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		stage = metrics.start();
+		try {
+			ResamplingEngine engine = new ResamplingEngine(executor, 4 * threads);
+			for (int c = 0; c < nChannels; c++) {
+				final int channelIndex = c;
+				engine.setProgressListener((completed, total) -> statusService
+					.showProgress(channelIndex * total + completed, nChannels * total));
+				RandomAccessibleInterval<T> target = Views.hyperSlice(output, output.numDimensions() - 1, c);
+				AffineGet transform = transforms[c];
+				if (transform != null && target.numDimensions() == 2) {
+					transform = CorrectionProfile.toAffine2D(transform);
+				}
+				if (transform != null) {
+					logService.info("Applying effective transform to channel index " + c + ": " + transform.toString());
+					engine.resample(extract(dataset, c), transform, target);
+				}
+				else {
+					engine.copy(extract(dataset, c), target);
+				}
+			}
 		}
-		transformedChannels.add(transformChannel1 ? //
-				transform(dataset, 0, affineChannel1, calibrationTransform) : extract(dataset, 0));
-		transformedChannels.add(transformChannel2 ? //
-				transform(dataset, 1, affineChannel2, calibrationTransform) : extract(dataset, 1));
-		if (dataset.dimension(Axes.CHANNEL) > 2) {
-			transformedChannels.add(transformChannel3 ? //
-					transform(dataset, 2, affineChannel3, calibrationTransform) : extract(dataset, 2));
+		finally {
+			executor.shutdown();
+			statusService.clearStatus();
 		}
-		RandomAccessibleInterval<T> stacked = Views.stack(transformedChannels);
+		metrics.stop("resampling", stage);
+		metrics.count("voxels written", Intervals.numElements(output));
 
-		// use datasetService.create(rai) for output, then set axes, then convert back to ImagePlus and set LUTs
-		Dataset resultDataset = datasetService.create(stacked);
+		// wrap output in a Dataset, then set axes, then convert back to ImagePlus and set LUTs
+		stage = metrics.start();
+		Dataset resultDataset = datasetService.create(new ImgPlus<>(output));
 		CalibratedAxis[] originalAxes = new CalibratedAxis[dataset.numDimensions()];
 		dataset.axes(originalAxes);
 		CalibratedAxis[] newAxes = new CalibratedAxis[resultDataset.numDimensions()];
@@ -117,20 +357,24 @@ public class ChannelTransformer<T extends RealType<T>> extends DynamicCommand im
 			resultImp.setPositionWithoutUpdate(i, 1, 1);
 			resultImp.setLut(luts[i-1]);
 		}
+		metrics.stop("conversion to ImagePlus", stage);
 	}
 
-	@SuppressWarnings("unchecked")
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private RandomAccessibleInterval<T> extract(Dataset d, int channelIndex) {
-		return (RandomAccessibleInterval<T>) Views.hyperSlice(d, d.dimensionIndex(Axes.CHANNEL), channelIndex);
+		return (RandomAccessibleInterval) Views.hyperSlice(d, d.dimensionIndex(Axes.CHANNEL), channelIndex);
 	}
 
-	private RandomAccessibleInterval<T> transform(Dataset d, int channelIndex, AffineGet affine, AffineTransform3D calibration) {
-		RandomAccessibleInterval<T> singleChannel = extract(d, channelIndex);
-		AffineGet transform = calibration.copy().preConcatenate(affine).preConcatenate(calibration.inverse());
-		logService.info("Applying effective transform to channel index " + channelIndex + ": " + transform.toString());
-		AffineRandomAccessible<T, ?> transformed = RealViews
-				.affine(Views.interpolate(Views.extendZero(singleChannel), new NLinearInterpolatorFactory<T>()), transform);
-		return Views.interval(transformed, singleChannel);
+	@SuppressWarnings("unchecked")
+	private Img<T> createOutput(Dataset d, int nChannels) {
+		int channelDim = d.dimensionIndex(Axes.CHANNEL);
+		long[] dims = new long[d.numDimensions()];
+		for (int i = 0, o = 0; i < dims.length; i++) {
+			if (i != channelDim) dims[o++] = d.dimension(i);
+		}
+		dims[dims.length - 1] = nChannels;
+		T type = (T) d.firstElement();
+		return Util.getArrayOrCellImgFactory(new FinalDimensions(dims), type).create(dims);
 	}
 
 	@Override
@@ -0,0 +1,163 @@
+package ch.fmi.correction;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Per-channel affine corrections (in calibrated coordinates) of one
+ * acquisition setup. The corresponding transforms in pixel coordinates, i.e.
+ * calibration, channel affine and inverse calibration fused into one matrix,
+ * and their inverses are computed once per pixel spacing and cached, so that
+ * a profile registered with the {@code ObjectService} can be reused for many
+ * images.
+ */
+public class CorrectionProfile {
+
+	private final AffineGet[] affines;
+	private final Map<Spacing, Entry> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param affines one transform per channel, or {@code null} for channels
+	 *          to be left untouched; 2D transforms are applied plane-wise
+	 */
+	public CorrectionProfile(AffineGet... affines) {
+		this.affines = new AffineGet[affines.length];
+		for (int c = 0; c < affines.length; c++) {
+			this.affines[c] = affines[c] == null ? null : toAffine3D(affines[c]);
+		}
+	}
+
+	public int numChannels() {
+		return affines.length;
+	}
+
+	public AffineGet affine(int channel) {
+		return channel < affines.length ? affines[channel] : null;
+	}
+
+	/**
+	 * Returns the transforms in pixel coordinates for the given pixel spacing,
+	 * with {@code null} for untouched channels.
+	 */
+	public AffineGet[] pixelTransforms(double... spacing) {
+		return entry(spacing).transforms.clone();
+	}
+
+	public AffineGet pixelTransform(int channel, double... spacing) {
+		return channel < affines.length ? entry(spacing).transforms[channel]
+			: null;
+	}
+
+	public AffineGet inversePixelTransform(int channel, double... spacing) {
+		return channel < affines.length ? entry(spacing).inverses[channel] : null;
+	}
+
+	private Entry entry(double[] spacing) {
+		return cache.computeIfAbsent(new Spacing(spacing), s -> new Entry(
+			affines, s.values));
+	}
+
+	/**
+	 * Returns the scaling from pixel to calibrated coordinates.
+	 */
+	public static AffineTransform3D calibration(double... spacing) {
+		AffineTransform3D calibration = new AffineTransform3D();
+		calibration.scale(spacing[0], spacing[1], spacing[2]);
+		return calibration;
+	}
+
+	/**
+	 * Returns {@code affine} as a 3D transform, leaving z untouched if
+	 * {@code affine} is 2D.
+	 */
+	public static AffineTransform3D toAffine3D(AffineGet affine) {
+		AffineTransform3D affine3D = new AffineTransform3D();
+		if (affine.numDimensions() == 3) {
+			affine3D.set(affine.getRowPackedCopy());
+		}
+		else if (affine.numDimensions() == 2) {
+			affine3D.set( //
+				affine.get(0, 0), affine.get(0, 1), 0, affine.get(0, 2), //
+				affine.get(1, 0), affine.get(1, 1), 0, affine.get(1, 2), //
+				0, 0, 1, 0);
+		}
+		else {
+			throw new IllegalArgumentException("Expected a 2D or 3D transform, got " +
+				affine.numDimensions() + "D.");
+		}
+		return affine3D;
+	}
+
+	/**
+	 * Returns the xy part of the 3D transform {@code affine}, e.g. to apply it
+	 * to 2D images.
+	 */
+	public static AffineTransform2D toAffine2D(AffineGet affine) {
+		AffineTransform2D affine2D = new AffineTransform2D();
+		affine2D.set( //
+			affine.get(0, 0), affine.get(0, 1), affine.get(0, 3), //
+			affine.get(1, 0), affine.get(1, 1), affine.get(1, 3));
+		return affine2D;
+	}
+
+	/**
+	 * Returns the x, y and z pixel spacing of {@code dataset}, using 1 for
+	 * missing axes.
+	 */
+	public static double[] pixelSpacing(Dataset dataset) {
+		AxisType[] types = { Axes.X, Axes.Y, Axes.Z };
+		double[] spacing = new double[types.length];
+		for (int i = 0; i < types.length; i++) {
+			int d = dataset.dimensionIndex(types[i]);
+			spacing[i] = d < 0 ? 1.0 : dataset.averageScale(d);
+		}
+		return spacing;
+	}
+
+	private static class Entry {
+
+		private final AffineGet[] transforms;
+		private final AffineGet[] inverses;
+
+		private Entry(AffineGet[] affines, double[] spacing) {
+			AffineTransform3D calibration = calibration(spacing);
+			AffineTransform3D inverseCalibration = calibration.inverse();
+			transforms = new AffineGet[affines.length];
+			inverses = new AffineGet[affines.length];
+			for (int c = 0; c < affines.length; c++) {
+				if (affines[c] == null) continue;
+				transforms[c] = calibration.copy().preConcatenate(affines[c])
+					.preConcatenate(inverseCalibration);
+				inverses[c] = transforms[c].inverse();
+			}
+		}
+	}
+
+	private static class Spacing {
+
+		private final double[] values;
+
+		private Spacing(double[] values) {
+			this.values = values.clone();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Spacing && Arrays.equals(values,
+				((Spacing) obj).values);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+}
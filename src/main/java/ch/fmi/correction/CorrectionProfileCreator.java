@@ -0,0 +1,55 @@
+package ch.fmi.correction;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * Combines per-channel transforms into a {@link CorrectionProfile} and
+ * registers it with the {@link ObjectService}, for reuse by
+ * {@link ChannelTransformer} on all images of the same acquisition setup.
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI > Multi-Channel Image Correction > Create Correction Profile")
+public class CorrectionProfileCreator extends ContextCommand {
+
+	@Parameter
+	private Boolean transformChannel1 = false;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel1;
+
+	@Parameter
+	private Boolean transformChannel2 = true;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel2;
+
+	@Parameter
+	private Boolean transformChannel3 = false;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel3;
+
+	@Parameter(label = "Name to store profile")
+	private String name;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private CorrectionProfile profile;
+
+	@Parameter
+	private ObjectService objectService;
+
+	@Override
+	public void run() {
+		profile = new CorrectionProfile(transformChannel1 ? affineChannel1 : null,
+			transformChannel2 ? affineChannel2 : null, transformChannel3
+				? affineChannel3 : null);
+		objectService.addObject(profile, name);
+	}
+}
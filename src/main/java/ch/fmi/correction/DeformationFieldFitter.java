@@ -0,0 +1,205 @@
+package ch.fmi.correction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.RadiusNeighborSearchOnKDTree;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.DeformationField;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import mpicbg.models.CoordinateTransform;
+import mpicbg.models.PointMatch;
+import process.ComparePair;
+
+/**
+ * Fits a non-rigid correction for the second channel of a pair of matched bead
+ * channels. The field is the affine model of the pair plus the residuals of
+ * the inlier beads, smoothed with a Gaussian kernel, and is sampled on a
+ * coarse grid covering the image. Far from any bead, the field falls back to
+ * the affine model.
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI > Multi-Channel Image Correction > Fit Deformation Field")
+public class DeformationFieldFitter extends ContextCommand {
+
+	@Parameter(label = "Image (defines extent and calibration)")
+	private ImagePlus imp;
+
+	@Parameter
+	private ComparePair comparePair;
+
+	@Parameter(label = "Grid spacing (calibrated units)", min = "0")
+	private Double gridSpacing = 10.0;
+
+	@Parameter(label = "Smoothing sigma (calibrated units, 0 = grid spacing)",
+		min = "0")
+	private Double sigma = 0.0;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter(label = "Name to store the deformation field")
+	private String fieldName;
+
+	@Parameter
+	private ObjectService objectService;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private DeformationField field;
+
+	@Override
+	public void run() {
+		Calibration cal = imp.getCalibration();
+		double[] extent = { (imp.getWidth() - 1) * cal.pixelWidth, (imp
+			.getHeight() - 1) * cal.pixelHeight, (imp.getNSlices() - 1) *
+				cal.pixelDepth };
+		int[] dimensions = new int[3];
+		double[] spacing = new double[3];
+		for (int d = 0; d < 3; d++) {
+			dimensions[d] = (int) Math.ceil(extent[d] / gridSpacing) + 1;
+			spacing[d] = dimensions[d] > 1 ? extent[d] / (dimensions[d] - 1) : 1.0;
+		}
+		Metrics metrics = metricsService.start("Fit Deformation Field");
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = metrics.start();
+		try {
+			field = fit(comparePair.model, comparePair.inliers, dimensions,
+				new double[3], spacing, sigma > 0 ? sigma : gridSpacing, executor, 4 *
+					threads);
+		}
+		finally {
+			executor.shutdown();
+		}
+		metrics.stop("fitting", start);
+		metrics.count("beads", comparePair.inliers.size());
+		metrics.count("nodes", (long) dimensions[0] * dimensions[1] * dimensions[2]);
+		logService.info("Fitted deformation field for channel index " +
+			comparePair.indexB + " with " + dimensions[0] + "x" + dimensions[1] +
+			"x" + dimensions[2] + " nodes from " + comparePair.inliers.size() +
+			" beads");
+		objectService.addObject(field, fieldName);
+		metricsService.finish(metrics);
+	}
+
+	/**
+	 * Fits a deformation field mapping positions of the first to positions of
+	 * the second point of each match. The beads within the cutoff of each node
+	 * are found with a radius search on a {@link KDTree}, and the rows of nodes
+	 * are split into {@code numTasks} tasks on {@code executor}.
+	 *
+	 * @param model the (affine) model mapping first to second points
+	 * @param matches the matches, whose residuals under {@code model} are
+	 *          smoothed
+	 * @param sigma the standard deviation of the Gaussian smoothing kernel
+	 */
+	public static DeformationField fit(CoordinateTransform model,
+		List<PointMatch> matches, int[] dimensions, double[] origin,
+		double[] spacing, double sigma, ExecutorService executor, int numTasks)
+	{
+		int numMatches = matches.size();
+		List<RealPoint> positions = new ArrayList<>(numMatches);
+		List<double[]> residuals = new ArrayList<>(numMatches);
+		for (int i = 0; i < numMatches; i++) {
+			PointMatch match = matches.get(i);
+			// matches of 2D models have 2D locations
+			double[] position = match.getP1().getL().clone();
+			double[] mapped = model.apply(position.clone());
+			double[] target = match.getP2().getL();
+			double[] residual = new double[3];
+			for (int d = 0; d < mapped.length; d++) {
+				residual[d] = target[d] - mapped[d];
+			}
+			positions.add(new RealPoint(position));
+			residuals.add(residual);
+		}
+		KDTree<double[]> tree = numMatches > 0 ? new KDTree<>(residuals, positions)
+			: null;
+
+		double radius = 3 * sigma;
+		double norm = -0.5 / (sigma * sigma);
+		int nx = dimensions[0], ny = dimensions[1], nz = dimensions[2];
+		float[] displacements = new float[3 * nx * ny * nz];
+		List<Future<?>> futures = new ArrayList<>();
+		for (int[] chunk : DescriptorMatcher.chunks(ny * nz, numTasks)) {
+			futures.add(executor.submit(() -> {
+				// searches are not thread-safe, but can share the tree
+				RadiusNeighborSearchOnKDTree<double[]> search = tree == null ? null
+					: new RadiusNeighborSearchOnKDTree<>(tree);
+				RealPoint query = tree == null ? null : new RealPoint(tree
+					.numDimensions());
+				double[] node = new double[3];
+				double[] smoothed = new double[3];
+				for (int row = chunk[0]; row < chunk[1]; row++) {
+					int y = row % ny, z = row / ny;
+					for (int x = 0, i = 3 * row * nx; x < nx; x++, i += 3) {
+						node[0] = origin[0] + x * spacing[0];
+						node[1] = origin[1] + y * spacing[1];
+						node[2] = origin[2] + z * spacing[2];
+						smoothed[0] = smoothed[1] = smoothed[2] = 0;
+						if (search != null) {
+							for (int d = 0; d < query.numDimensions(); d++) {
+								query.setPosition(node[d], d);
+							}
+							search.search(query, radius, false);
+							smooth(search, norm, smoothed);
+						}
+						double[] mapped = model.apply(node.clone());
+						for (int d = 0; d < 3; d++) {
+							double affine = d < mapped.length ? mapped[d] - node[d] : 0;
+							displacements[i + d] = (float) (affine + smoothed[d]);
+						}
+					}
+				}
+			}));
+		}
+		DescriptorMatcher.await(futures);
+		return new DeformationField(dimensions, origin, spacing, displacements);
+	}
+
+	/**
+	 * Computes the Gaussian weighted average of the residuals found by
+	 * {@code search}. The total weight is at least one, so that the average
+	 * shrinks towards zero where there are few beads.
+	 */
+	private static void smooth(RadiusNeighborSearchOnKDTree<double[]> search,
+		double norm, double[] smoothed)
+	{
+		double sum = 0;
+		for (int i = 0; i < search.numNeighbors(); i++) {
+			double weight = Math.exp(norm * search.getSquareDistance(i));
+			double[] residual = search.getSampler(i).get();
+			sum += weight;
+			for (int d = 0; d < 3; d++) {
+				smoothed[d] += weight * residual[d];
+			}
+		}
+		sum = Math.max(sum, 1);
+		for (int d = 0; d < 3; d++) {
+			smoothed[d] /= sum;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package ch.fmi.correction;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.DeformationField;
+import ch.fmi.transform.resample.Planes;
+import ch.fmi.transform.resample.ResamplingEngine;
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Applies non-rigid channel corrections, given as {@link DeformationField}s
+ * in calibrated units, to all frames of a multi-channel image. Channels
+ * without a field are copied unchanged.
+ */
+@Plugin(type = Command.class,
+	menuPath = "FMI > Multi-Channel Image Correction > Apply Deformation Field")
+public class DeformationFieldTransformer extends ContextCommand {
+
+	@Parameter
+	private ImagePlus imp;
+
+	@Parameter
+	private Boolean transformChannel1 = false;
+
+	@Parameter(required = false)
+	private DeformationField fieldChannel1;
+
+	@Parameter
+	private Boolean transformChannel2 = true;
+
+	@Parameter(required = false)
+	private DeformationField fieldChannel2;
+
+	@Parameter
+	private Boolean transformChannel3 = true;
+
+	@Parameter(required = false)
+	private DeformationField fieldChannel3;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private ImagePlus resultImp;
+
+	@Override
+	public void run() {
+		if (imp.getBitDepth() == 24 || imp.getStack().isVirtual()) {
+			cancel("RGB images and virtual stacks are not supported");
+			return;
+		}
+		Calibration cal = imp.getCalibration();
+		DeformationField[] fields = { transformChannel1 ? fieldChannel1 : null,
+			transformChannel2 ? fieldChannel2 : null, transformChannel3
+				? fieldChannel3 : null };
+		for (int c = 0; c < fields.length; c++) {
+			if (fields[c] != null) {
+				fields[c] = fields[c].toPixels(cal.pixelWidth, cal.pixelHeight,
+					cal.pixelDepth);
+				logService.info("Applying deformation field to channel index " + c);
+			}
+		}
+
+		Metrics metrics = metricsService.start("Apply Deformation Field");
+		long start = metrics.start();
+		ImageStack stack = imp.getStack();
+		ImageStack result = new ImageStack(imp.getWidth(), imp.getHeight(), stack
+			.getSize());
+		int depth = imp.getNSlices();
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ResamplingEngine engine = new ResamplingEngine(executor, 4 * threads);
+			for (int t = 1; t <= imp.getNFrames(); t++) {
+				for (int c = 1; c <= imp.getNChannels(); c++) {
+					DeformationField field = c <= fields.length ? fields[c - 1] : null;
+					Object[] source = new Object[depth];
+					Object[] target = new Object[depth];
+					for (int z = 0; z < depth; z++) {
+						int index = imp.getStackIndex(c, z + 1, t);
+						source[z] = stack.getPixels(index);
+						target[z] = field == null ? stack.getProcessor(index).duplicate()
+							.getPixels() : stack.getProcessor(index).createProcessor(imp
+								.getWidth(), imp.getHeight()).getPixels();
+						result.setPixels(target[z], index);
+						result.setSliceLabel(stack.getSliceLabel(index), index);
+					}
+					if (field != null) {
+						engine.resample(Planes.wrap(imp.getWidth(), imp.getHeight(),
+							source), field, Planes.wrap(imp.getWidth(), imp.getHeight(),
+								target));
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		metrics.stop("resampling", start);
+		metrics.count("voxels written", (long) imp.getWidth() * imp.getHeight() * stack
+			.getSize());
+
+		resultImp = new ImagePlus(imp.getTitle() + "_corrected", result);
+		resultImp.setDimensions(imp.getNChannels(), depth, imp.getNFrames());
+		resultImp.setCalibration(cal.copy());
+		if (imp.isComposite()) {
+			CompositeImage composite = new CompositeImage(resultImp,
+				((CompositeImage) imp).getMode());
+			composite.setLuts(imp.getLuts());
+			resultImp = composite;
+		}
+		metricsService.finish(metrics);
+	}
+}
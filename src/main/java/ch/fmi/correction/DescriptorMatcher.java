@@ -0,0 +1,398 @@
+package ch.fmi.correction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+
+import ch.fmi.util.PointCloud;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import process.ComparePair;
+
+/**
+ * Matches the bead point clouds of several channels by local geometric
+ * descriptors, like {@code Matching.descriptorMatching} of Descriptor-based
+ * registration, but with every stage running in parallel: KD-trees and
+ * descriptors are computed once per channel, all channel pairs are matched
+ * concurrently, and RANSAC hypotheses are evaluated in parallel.
+ * <p>
+ * A descriptor consists of the positions of the nearest neighbors relative
+ * to a point, ordered by distance. It is invariant to translation only (as
+ * with "similar orientation" in Descriptor-based registration), which suits
+ * the small rotations between channels. Candidate matches must be
+ * {@code significance} times closer in descriptor space than the second best
+ * match.
+ * </p>
+ */
+public class DescriptorMatcher {
+
+	private final ExecutorService executor;
+	private final int numTasks;
+
+	private int numDimensions = 3;
+	private int numNeighbors = 3;
+	private double significance = 3.0;
+	private double ransacThreshold = 5.0;
+	private int ransacIterations = 1000;
+	private long seed = 0;
+
+	/**
+	 * @param executor the executor running all stages
+	 * @param numTasks the number of tasks each stage is split into
+	 */
+	public DescriptorMatcher(ExecutorService executor, int numTasks) {
+		this.executor = executor;
+		this.numTasks = Math.max(1, numTasks);
+	}
+
+	/**
+	 * Sets whether to match in 3D or, ignoring z, in 2D.
+	 */
+	public void setNumDimensions(int numDimensions) {
+		this.numDimensions = numDimensions;
+	}
+
+	public void setNumNeighbors(int numNeighbors) {
+		this.numNeighbors = numNeighbors;
+	}
+
+	public void setSignificance(double significance) {
+		this.significance = significance;
+	}
+
+	public void setRansacThreshold(double ransacThreshold) {
+		this.ransacThreshold = ransacThreshold;
+	}
+
+	public void setRansacIterations(int ransacIterations) {
+		this.ransacIterations = ransacIterations;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Matches all pairs of {@code clouds}. As with Descriptor-based
+	 * registration, there is one {@link ComparePair} per pair, whose model maps
+	 * points of {@code indexA} to {@code indexB} and whose inliers are empty if
+	 * no consistent model was found.
+	 *
+	 * @param model the model to fit, which is copied for each pair
+	 */
+	public Vector<ComparePair> match(List<PointCloud> clouds,
+		AbstractModel<?> model)
+	{
+		int n = clouds.size();
+
+		// descriptors of all points, and their KD-trees, once per cloud
+		double[][][] descriptors = new double[n][][];
+		List<Future<?>> futures = new ArrayList<>();
+		for (int c = 0; c < n; c++) {
+			PointCloud cloud = clouds.get(c);
+			if (cloud.size() <= numNeighbors) continue;
+			descriptors[c] = new double[cloud.size()][];
+			KDTree<Integer> tree = tree(cloud, numDimensions);
+			double[][] target = descriptors[c];
+			for (int[] chunk : chunks(cloud.size(), numTasks)) {
+				futures.add(executor.submit(() -> describe(cloud, tree, target,
+					chunk[0], chunk[1])));
+			}
+		}
+		await(futures);
+		List<Future<KDTree<Integer>>> treeFutures = new ArrayList<>();
+		for (int c = 0; c < n; c++) {
+			double[][] d = descriptors[c];
+			treeFutures.add(d == null ? null : executor.submit(() -> tree(d)));
+		}
+		List<KDTree<Integer>> descriptorTrees = new ArrayList<>();
+		for (Future<KDTree<Integer>> future : treeFutures) {
+			descriptorTrees.add(future == null ? null : get(future));
+		}
+
+		// candidate matches of all pairs
+		List<int[]> pairs = new ArrayList<>();
+		for (int a = 0; a < n; a++) {
+			for (int b = a + 1; b < n; b++) {
+				pairs.add(new int[] { a, b });
+			}
+		}
+		int tasksPerPair = Math.max(1, numTasks / Math.max(1, pairs.size()));
+		List<List<Future<List<int[]>>>> candidateFutures = new ArrayList<>();
+		for (int[] pair : pairs) {
+			List<Future<List<int[]>>> pairFutures = new ArrayList<>();
+			double[][] descriptorsA = descriptors[pair[0]];
+			KDTree<Integer> treeB = descriptorTrees.get(pair[1]);
+			if (descriptorsA != null && treeB != null && treeB.size() > 1) {
+				for (int[] chunk : chunks(descriptorsA.length, tasksPerPair)) {
+					pairFutures.add(executor.submit(() -> candidates(descriptorsA,
+						treeB, chunk[0], chunk[1])));
+				}
+			}
+			candidateFutures.add(pairFutures);
+		}
+		List<List<PointMatch>> candidates = new ArrayList<>();
+		for (int p = 0; p < pairs.size(); p++) {
+			PointCloud cloudA = clouds.get(pairs.get(p)[0]);
+			PointCloud cloudB = clouds.get(pairs.get(p)[1]);
+			List<PointMatch> matches = new ArrayList<>();
+			for (Future<List<int[]>> future : candidateFutures.get(p)) {
+				for (int[] match : get(future)) {
+					matches.add(new PointMatch(point(cloudA, match[0], numDimensions),
+						point(cloudB, match[1], numDimensions)));
+				}
+			}
+			candidates.add(matches);
+		}
+
+		// RANSAC hypotheses of all pairs
+		int minMatches = model.getMinNumMatches();
+		List<List<Future<Hypothesis>>> hypothesisFutures = new ArrayList<>();
+		for (int p = 0; p < pairs.size(); p++) {
+			List<Future<Hypothesis>> pairFutures = new ArrayList<>();
+			List<PointMatch> matches = candidates.get(p);
+			if (matches.size() >= minMatches) {
+				for (int t = 0; t < tasksPerPair; t++) {
+					long taskSeed = seed + 31L * p + t;
+					int count = ransacIterations / tasksPerPair + (t < ransacIterations %
+						tasksPerPair ? 1 : 0);
+					pairFutures.add(executor.submit(() -> ransac(matches, model,
+						count, taskSeed)));
+				}
+			}
+			hypothesisFutures.add(pairFutures);
+		}
+		Vector<ComparePair> comparePairs = new Vector<>();
+		for (int p = 0; p < pairs.size(); p++) {
+			Hypothesis best = null;
+			for (Future<Hypothesis> future : hypothesisFutures.get(p)) {
+				Hypothesis hypothesis = get(future);
+				if (best == null || hypothesis.numInliers > best.numInliers) {
+					best = hypothesis;
+				}
+			}
+			ComparePair comparePair = new ComparePair(pairs.get(p)[0], pairs.get(
+				p)[1], model);
+			AbstractModel<?> fitted = model.copy();
+			comparePair.inliers = best == null || best.sample == null
+				? new ArrayList<>() : refine(candidates.get(p), best.sample, fitted);
+			comparePair.model = fitted;
+			comparePairs.add(comparePair);
+		}
+		return comparePairs;
+	}
+
+	// -- Stages --
+
+	private void describe(PointCloud cloud, KDTree<Integer> tree,
+		double[][] descriptors, int from, int to)
+	{
+		KNearestNeighborSearchOnKDTree<Integer> search =
+			new KNearestNeighborSearchOnKDTree<>(tree, numNeighbors + 1);
+		int n = numDimensions;
+		RealPoint query = new RealPoint(n);
+		double[] position = new double[n];
+		double[] neighbor = new double[n];
+		for (int i = from; i < to; i++) {
+			cloud.localize(i, position);
+			query.setPosition(position);
+			search.search(query);
+			// the nearest neighbor is the point itself
+			double[] descriptor = new double[n * numNeighbors];
+			for (int k = 0; k < numNeighbors; k++) {
+				search.getPosition(k + 1).localize(neighbor);
+				for (int d = 0; d < n; d++) {
+					descriptor[n * k + d] = neighbor[d] - position[d];
+				}
+			}
+			descriptors[i] = descriptor;
+		}
+	}
+
+	private List<int[]> candidates(double[][] descriptorsA,
+		KDTree<Integer> treeB, int from, int to)
+	{
+		KNearestNeighborSearchOnKDTree<Integer> search =
+			new KNearestNeighborSearchOnKDTree<>(treeB, 2);
+		RealPoint query = new RealPoint(treeB.numDimensions());
+		List<int[]> matches = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			query.setPosition(descriptorsA[i]);
+			search.search(query);
+			if (search.getDistance(0) * significance < search.getDistance(1)) {
+				matches.add(new int[] { i, search.getSampler(0).get() });
+			}
+		}
+		return matches;
+	}
+
+	private Hypothesis ransac(List<PointMatch> matches, AbstractModel<?> model,
+		int iterations, long taskSeed)
+	{
+		AbstractModel<?> hypothesis = model.copy();
+		int minMatches = hypothesis.getMinNumMatches();
+		Random random = new Random(taskSeed);
+		List<PointMatch> sample = new ArrayList<>(minMatches);
+		int[] indices = new int[minMatches];
+		double[] scratch = new double[numDimensions];
+		Hypothesis best = new Hypothesis();
+		for (int it = 0; it < iterations; it++) {
+			sample.clear();
+			for (int s = 0; s < minMatches; s++) {
+				indices[s] = drawIndex(random, matches.size(), indices, s);
+				sample.add(matches.get(indices[s]));
+			}
+			try {
+				hypothesis.fit(sample);
+			}
+			catch (NotEnoughDataPointsException | IllDefinedDataPointsException exc) {
+				continue;
+			}
+			int numInliers = 0;
+			for (PointMatch match : matches) {
+				if (isInlier(hypothesis, match, scratch)) numInliers++;
+			}
+			if (numInliers > best.numInliers) {
+				best.numInliers = numInliers;
+				best.sample = indices.clone();
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Fits {@code model} to the inliers of the hypothesis from
+	 * {@code sample}, repeating until the inliers do not change anymore.
+	 */
+	private ArrayList<PointMatch> refine(List<PointMatch> matches, int[] sample,
+		AbstractModel<?> model)
+	{
+		ArrayList<PointMatch> inliers = new ArrayList<>();
+		for (int index : sample) {
+			inliers.add(matches.get(index));
+		}
+		double[] scratch = new double[numDimensions];
+		for (int it = 0; it < 10; it++) {
+			try {
+				model.fit(inliers);
+			}
+			catch (NotEnoughDataPointsException | IllDefinedDataPointsException exc) {
+				return new ArrayList<>();
+			}
+			ArrayList<PointMatch> refined = new ArrayList<>();
+			for (PointMatch match : matches) {
+				if (isInlier(model, match, scratch)) refined.add(match);
+			}
+			if (refined.size() < model.getMinNumMatches()) return new ArrayList<>();
+			boolean converged = refined.equals(inliers);
+			inliers = refined;
+			if (converged) break;
+		}
+		return inliers;
+	}
+
+	private boolean isInlier(AbstractModel<?> model, PointMatch match,
+		double[] scratch)
+	{
+		double[] a = match.getP1().getL();
+		double[] b = match.getP2().getL();
+		System.arraycopy(a, 0, scratch, 0, scratch.length);
+		model.applyInPlace(scratch);
+		double distance = 0;
+		for (int d = 0; d < scratch.length; d++) {
+			distance += (scratch[d] - b[d]) * (scratch[d] - b[d]);
+		}
+		return distance <= ransacThreshold * ransacThreshold;
+	}
+
+	// -- Helper methods --
+
+	private static int drawIndex(Random random, int n, int[] drawn, int count) {
+		while (true) {
+			int index = random.nextInt(n);
+			boolean duplicate = false;
+			for (int i = 0; i < count; i++) {
+				duplicate |= drawn[i] == index;
+			}
+			if (!duplicate) return index;
+		}
+	}
+
+	static KDTree<Integer> tree(PointCloud cloud, int numDimensions) {
+		List<Integer> indices = new ArrayList<>(cloud.size());
+		List<RealPoint> positions = new ArrayList<>(cloud.size());
+		double[] position = new double[numDimensions];
+		for (int i = 0; i < cloud.size(); i++) {
+			cloud.localize(i, position);
+			indices.add(i);
+			positions.add(new RealPoint(position));
+		}
+		return new KDTree<>(indices, positions);
+	}
+
+	private static KDTree<Integer> tree(double[][] descriptors) {
+		List<Integer> indices = new ArrayList<>(descriptors.length);
+		List<RealPoint> positions = new ArrayList<>(descriptors.length);
+		for (int i = 0; i < descriptors.length; i++) {
+			indices.add(i);
+			positions.add(RealPoint.wrap(descriptors[i]));
+		}
+		return new KDTree<>(indices, positions);
+	}
+
+	static Point point(PointCloud cloud, int i, int numDimensions) {
+		double[] position = new double[numDimensions];
+		cloud.localize(i, position);
+		return new Point(position);
+	}
+
+	/**
+	 * Splits {@code [0, n)} into at most {@code numChunks} ranges
+	 * {@code [from, to)}.
+	 */
+	static List<int[]> chunks(int n, int numChunks) {
+		List<int[]> chunks = new ArrayList<>();
+		int size = Math.max(1, (n + numChunks - 1) / numChunks);
+		for (int from = 0; from < n; from += size) {
+			chunks.add(new int[] { from, Math.min(n, from + size) });
+		}
+		if (chunks.isEmpty()) chunks.add(new int[] { 0, 0 });
+		return chunks;
+	}
+
+	static void await(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			get(future);
+		}
+	}
+
+	static <V> V get(Future<V> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Matching was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new RuntimeException("Matching failed", exc.getCause());
+		}
+	}
+
+	private static class Hypothesis {
+
+		private int numInliers;
+		private int[] sample;
+	}
+}
@@ -1,12 +1,30 @@
-
 package ch.fmi.correction;
 
-import net.imagej.ops.OpService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
-import net.imglib2.loops.LoopBuilder;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.realtransform.AffineGet;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -14,10 +32,25 @@ import org.scijava.command.ContextCommand;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.util.CoarseGrid;
+
 /**
  * Computes displacement maps of dx, dy and dz for a given affine transformation
- * when applied to all positions in an image.
- * 
+ * when applied to all positions in an image. As the maps are smooth, they can
+ * be computed on a coarse grid of every {@code gridStep}-th pixel only, and
+ * optionally be upsampled lazily to full resolution.
+ * <p>
+ * The displacement of an affine is linear in the position, so each row is
+ * computed from its first value and a constant increment, in parallel and
+ * directly into the backing arrays. The maps are either separate
+ * {@link DoubleType} images or a single {@link FloatType} image with one
+ * channel per dimension. Alternatively, the maps can be lazy views that
+ * compute the displacement of each pixel on access, e.g. for sampling a few
+ * points or browsing planes without allocating any image.
+ * </p>
+ *
  * @author Jan Eglinger
  */
 @Plugin(type = Command.class,
@@ -36,8 +69,20 @@ public class DisplacementMap extends ContextCommand {
 	@Parameter
 	private AffineGet transform;
 
-	@Parameter
-	private OpService opService;
+	@Parameter(label = "Compute lazily on access (no image memory)")
+	private Boolean lazy = false;
+
+	@Parameter(label = "Grid step (pixels, 1 = every pixel)", min = "1")
+	private Integer gridStep = 1;
+
+	@Parameter(label = "Upsample coarse map to full resolution (lazily)")
+	private Boolean upsample = false;
+
+	@Parameter(label = "Single multi-channel (float) output")
+	private Boolean multiChannel = false;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
 
 	@Parameter(type = ItemIO.OUTPUT)
 	private Img<DoubleType> dxImg;
@@ -48,46 +93,214 @@ public class DisplacementMap extends ContextCommand {
 	@Parameter(type = ItemIO.OUTPUT)
 	private Img<DoubleType> dzImg;
 
-	private double[] srcLoc;
-	private double[] dstLoc;
+	@Parameter(type = ItemIO.OUTPUT)
+	private Img<FloatType> displacementImg;
+
+	@Parameter
+	private MetricsService metricsService;
 
 	@Override
 	public void run() {
-		if (transform.numDimensions() == 3) {
-			dxImg = opService.create().img(new long[] { dimX, dimY, dimZ });
-			dyImg = dxImg.copy();
-			dzImg = dxImg.copy();
-			srcLoc = new double[3];
-			dstLoc = new double[3];
-
-			LoopBuilder.setImages(Intervals.positions(dxImg), dxImg, dyImg, dzImg)
-				.forEachPixel((pos, x, y, z) -> {
-					pos.localize(srcLoc);
-					transform.apply(srcLoc, dstLoc);
-					x.set(dstLoc[0] - srcLoc[0]);
-					y.set(dstLoc[1] - srcLoc[1]);
-					z.set(dstLoc[2] - srcLoc[2]);
-				});
+		int n = transform.numDimensions();
+		if (n != 2 && n != 3) {
+			throw new RuntimeException("Cannot handle number of dimensions: " + n);
+		}
+		long[] dims = n == 3 ? new long[] { dimX, dimY, dimZ } : new long[] { dimX,
+			dimY };
+		if (lazy) {
+			if (multiChannel) {
+				long[] stackedDims = Arrays.copyOf(dims, n + 1);
+				stackedDims[n] = n;
+				displacementImg = asImg(lazyStack(transform, stackedDims),
+					new FloatType());
+			}
+			else {
+				dxImg = asImg(lazy(transform, 0, dims), new DoubleType());
+				dyImg = asImg(lazy(transform, 1, dims), new DoubleType());
+				if (n == 3) dzImg = asImg(lazy(transform, 2, dims), new DoubleType());
+			}
+			return;
+		}
+		Metrics metrics = metricsService.start("Compute Displacement Map");
+		long stage = metrics.start();
+		long[] gridDims = CoarseGrid.dimensions(dims, gridStep);
+		int depth = n == 3 ? (int) gridDims[2] : 1;
+
+		Object[][] planes = new Object[n][depth];
+		List<PlanarImg<DoubleType, DoubleArray>> maps = new ArrayList<>();
+		PlanarImg<FloatType, FloatArray> stacked = null;
+		if (multiChannel) {
+			long[] stackedDims = new long[n + 1];
+			System.arraycopy(gridDims, 0, stackedDims, 0, n);
+			stackedDims[n] = n;
+			stacked = PlanarImgs.floats(stackedDims);
+			for (int d = 0; d < n; d++) {
+				for (int z = 0; z < depth; z++) {
+					planes[d][z] = stacked.getPlane(d * depth + z).getCurrentStorageArray();
+				}
+			}
+		}
+		else {
+			for (int d = 0; d < n; d++) {
+				PlanarImg<DoubleType, DoubleArray> map = PlanarImgs.doubles(gridDims);
+				maps.add(map);
+				for (int z = 0; z < depth; z++) {
+					planes[d][z] = map.getPlane(z).getCurrentStorageArray();
+				}
+			}
+		}
+
+		metrics.stop("allocation", stage);
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		stage = metrics.start();
+		try {
+			fill(displacementMatrix(transform), gridStep, (int) gridDims[0],
+				(int) gridDims[1], planes, executor, 4 * threads);
 		}
-		else if (transform.numDimensions() == 2) {
-			dxImg = opService.create().img(new long[] { dimX, dimY });
-			dyImg = dxImg.copy();
-			srcLoc = new double[2];
-			dstLoc = new double[2];
-
-			LoopBuilder.setImages(Intervals.positions(dxImg), dxImg, dyImg)
-				.forEachPixel((pos, x, y) -> {
-					pos.localize(srcLoc);
-					transform.apply(srcLoc, dstLoc);
-					x.set(dstLoc[0] - srcLoc[0]);
-					y.set(dstLoc[1] - srcLoc[1]);
-				});
+		finally {
+			executor.shutdown();
+		}
+		metrics.stop("computation", stage);
+		metrics.count("voxels written", n * Intervals.numElements(gridDims));
+
+		if (multiChannel) {
+			List<RandomAccessibleInterval<FloatType>> channels = new ArrayList<>();
+			for (int d = 0; d < n; d++) {
+				channels.add(upsample(Views.hyperSlice(stacked, n, d), dims));
+			}
+			displacementImg = gridStep > 1 && upsample ? asImg(Views.stack(channels),
+				new FloatType()) : stacked;
 		}
 		else {
-			throw new RuntimeException("Cannot handle number of dimensions: " +
-				transform.numDimensions());
+			dxImg = upsampleMap(maps.get(0), dims);
+			dyImg = upsampleMap(maps.get(1), dims);
+			if (n == 3) dzImg = upsampleMap(maps.get(2), dims);
 		}
+		metricsService.finish(metrics);
 		// TODO create datasets, adjust minMax to be symmetric around 0, set colormap
-		// TODO consider creating multi-channel image as output (one channel per dimension x,y,z)
+	}
+
+	private <T extends RealType<T>> RandomAccessibleInterval<T> upsample(
+		RandomAccessibleInterval<T> map, long[] dims)
+	{
+		return gridStep > 1 && upsample ? CoarseGrid.upsample(map, gridStep, dims)
+			: map;
+	}
+
+	private Img<DoubleType> upsampleMap(PlanarImg<DoubleType, DoubleArray> map,
+		long[] dims)
+	{
+		return gridStep > 1 && upsample ? asImg(CoarseGrid.upsample(map, gridStep,
+			dims), new DoubleType()) : map;
+	}
+
+	/**
+	 * Wraps a view as an {@link Img} without copying it, so that the outputs
+	 * are images whether they are computed eagerly or on access.
+	 */
+	private static <T extends NativeType<T>> Img<T> asImg(
+		RandomAccessibleInterval<T> view, T type)
+	{
+		return ImgView.wrap(view, new PlanarImgFactory<>(type));
+	}
+
+	/**
+	 * Returns a view of the displacement of {@code transform} along dimension
+	 * {@code d}, which is computed on access and uses no image memory. Copy it
+	 * into an image to materialize it.
+	 */
+	public static RandomAccessibleInterval<DoubleType> lazy(AffineGet transform,
+		int d, long... dims)
+	{
+		double[] m = displacementMatrix(transform);
+		int n = transform.numDimensions();
+		return Views.interval(new FunctionRandomAccessible<>(n, (pos, t) -> t.set(
+			displacement(m, n, d, pos)), DoubleType::new), new FinalInterval(dims));
+	}
+
+	/**
+	 * Returns a view like {@link #lazy}, with the displacement along each
+	 * dimension as an additional last dimension of {@code dims}.
+	 */
+	public static RandomAccessibleInterval<FloatType> lazyStack(
+		AffineGet transform, long... dims)
+	{
+		double[] m = displacementMatrix(transform);
+		int n = transform.numDimensions();
+		return Views.interval(new FunctionRandomAccessible<>(n + 1, (pos, t) -> t
+			.setReal(displacement(m, n, pos.getIntPosition(n), pos)), FloatType::new),
+			new FinalInterval(dims));
+	}
+
+	private static double displacement(double[] m, int n, int d,
+		Localizable position)
+	{
+		int r = d * (n + 1);
+		double v = m[r + n];
+		for (int c = 0; c < n; c++) {
+			v += m[r + c] * position.getDoublePosition(c);
+		}
+		return v;
+	}
+
+	/**
+	 * Returns the row-packed n x (n + 1) matrix of the displacement
+	 * {@code transform(x) - x}, which is affine as well.
+	 */
+	static double[] displacementMatrix(AffineGet transform) {
+		int n = transform.numDimensions();
+		double[] m = new double[n * (n + 1)];
+		for (int r = 0; r < n; r++) {
+			for (int c = 0; c <= n; c++) {
+				m[r * (n + 1) + c] = transform.get(r, c) - (r == c ? 1 : 0);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Fills the {@code double[]} or {@code float[]} planes
+	 * {@code planes[d][z]} of {@code width * height} grid nodes with the
+	 * displacement along dimension {@code d}, where grid node {@code i} is at
+	 * pixel position {@code i * step}.
+	 *
+	 * @param m row-packed n x (n + 1) displacement matrix
+	 */
+	static void fill(double[] m, int step, int width, int height,
+		Object[][] planes, ExecutorService executor, int numTasks)
+	{
+		int n = planes.length;
+		int depth = planes[0].length;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int[] chunk : DescriptorMatcher.chunks(height * depth, numTasks)) {
+			futures.add(executor.submit(() -> {
+				for (int row = chunk[0]; row < chunk[1]; row++) {
+					int y = row % height, z = row / height;
+					int o = y * width;
+					for (int d = 0; d < n; d++) {
+						int r = d * (n + 1);
+						double start = m[r + 1] * y * step + (n > 2 ? m[r + 2] * z * step
+							: 0) + m[r + n];
+						double increment = m[r] * step;
+						Object plane = planes[d][z];
+						if (plane instanceof float[]) {
+							float[] p = (float[]) plane;
+							for (int x = 0; x < width; x++) {
+								p[o + x] = (float) (start + x * increment);
+							}
+						}
+						else {
+							double[] p = (double[]) plane;
+							for (int x = 0; x < width; x++) {
+								p[o + x] = start + x * increment;
+							}
+						}
+					}
+				}
+			}));
+		}
+		DescriptorMatcher.await(futures);
 	}
 }
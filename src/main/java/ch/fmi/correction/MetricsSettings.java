@@ -0,0 +1,41 @@
+package ch.fmi.correction;
+
+import java.io.File;
+
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.DefaultMetricsService;
+import ch.fmi.metrics.MetricsService;
+
+/**
+ * Enables or disables the stage timings and counters reported by the
+ * correction commands for the rest of the session.
+ */
+@Plugin(type = Command.class,
+	menuPath = "FMI > Multi-Channel Image Correction > Metrics Settings")
+public class MetricsSettings extends ContextCommand {
+
+	@Parameter(label = "Log stage timings and counters")
+	private Boolean enabled = false;
+
+	@Parameter(label = "Append metrics to file (JSON lines, optional)",
+		style = "save", required = false)
+	private File metricsFile;
+
+	@Parameter(label = "Sum up metrics in an MBean (" +
+		DefaultMetricsService.MBEAN_NAME + ")")
+	private Boolean mbean = false;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Override
+	public void run() {
+		metricsService.setEnabled(enabled);
+		metricsService.setMetricsFile(metricsFile);
+		metricsService.setMBeanEnabled(mbean);
+	}
+}
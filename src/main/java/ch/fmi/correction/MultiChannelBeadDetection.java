@@ -0,0 +1,120 @@
+package ch.fmi.correction;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.util.Beads;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.ImagePlus;
+
+/**
+ * Detects beads in several channels at once and registers one
+ * {@link SpotCollection} per channel with the {@link ObjectService}, named as
+ * in {@link ChannelBeadDetection}.
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI > Multi-Channel Image Correction > Bead Detection (All Channels)")
+public class MultiChannelBeadDetection extends ContextCommand {
+
+	@Parameter
+	private ImagePlus inputImp;
+
+	@Parameter(label = "Channels (comma-separated, empty = all)", required = false)
+	private String channels = "";
+
+	@Parameter(label = "Radius (one value, or one per channel)")
+	private String radius = "1.0";
+
+	@Parameter(label = "Threshold (one value, or one per channel)")
+	private String threshold = "1000.0";
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter
+	private ObjectService objectService;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Override
+	public void run() {
+		int[] channelList;
+		double[] radii;
+		double[] thresholds;
+		try {
+			channelList = channels == null || channels.trim().isEmpty()
+				? allChannels() : parseInts(channels);
+			radii = expand(parseDoubles(radius), channelList.length);
+			thresholds = expand(parseDoubles(threshold), channelList.length);
+		}
+		catch (IllegalArgumentException exc) {
+			cancel(exc.getMessage());
+			return;
+		}
+
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		Metrics metrics = metricsService.start("Multi-Channel Bead Detection");
+		long start = metrics.start();
+		Map<Integer, SpotCollection> collections = Beads.getSpotCollections(
+			inputImp, channelList, radii, thresholds, threads);
+		metrics.stop("detection", start);
+		for (Map.Entry<Integer, SpotCollection> entry : collections.entrySet()) {
+			logService.info("Number of spots in channel " + entry.getKey() + ": " +
+				entry.getValue().getNSpots(false));
+			metrics.count("spots detected", entry.getValue().getNSpots(false));
+			objectService.addObject(entry.getValue(), "Beads (Channel " + entry
+				.getKey() + "): " + inputImp.getTitle());
+		}
+		metricsService.finish(metrics);
+	}
+
+	private int[] allChannels() {
+		int[] all = new int[inputImp.getNChannels()];
+		for (int c = 0; c < all.length; c++) {
+			all[c] = c + 1;
+		}
+		return all;
+	}
+
+	private static int[] parseInts(String text) {
+		String[] tokens = text.split(",");
+		int[] values = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			values[i] = Integer.parseInt(tokens[i].trim());
+		}
+		return values;
+	}
+
+	private static double[] parseDoubles(String text) {
+		String[] tokens = text.split(",");
+		double[] values = new double[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			values[i] = Double.parseDouble(tokens[i].trim());
+		}
+		return values;
+	}
+
+	private static double[] expand(double[] values, int n) {
+		if (values.length == n) return values;
+		if (values.length != 1) {
+			throw new IllegalArgumentException("Expected one value or " + n +
+				" values, got " + values.length + ".");
+		}
+		double[] expanded = new double[n];
+		Arrays.fill(expanded, values[0]);
+		return expanded;
+	}
+}
@@ -0,0 +1,179 @@
+package ch.fmi.correction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+
+import ch.fmi.util.PointCloud;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import process.ComparePair;
+
+/**
+ * Matches the bead point clouds of channels that are already nearly aligned,
+ * by iterative closest points: beads are paired with their mutual nearest
+ * neighbor (within {@code maxDistance}) under the current model, the model is
+ * refit to the pairs while rejecting outliers by residual, and this is
+ * repeated until the pairs do not change anymore. KD-trees are built once per
+ * channel, and the correspondence search runs in parallel.
+ */
+public class NearestNeighborMatcher {
+
+	private final ExecutorService executor;
+	private final int numTasks;
+
+	private int numDimensions = 3;
+	private double maxDistance = 1.0;
+	private int maxIterations = 20;
+
+	/**
+	 * @param executor the executor running the correspondence search
+	 * @param numTasks the number of tasks the search is split into
+	 */
+	public NearestNeighborMatcher(ExecutorService executor, int numTasks) {
+		this.executor = executor;
+		this.numTasks = Math.max(1, numTasks);
+	}
+
+	/**
+	 * Sets whether to match in 3D or, ignoring z, in 2D.
+	 */
+	public void setNumDimensions(int numDimensions) {
+		this.numDimensions = numDimensions;
+	}
+
+	public void setMaxDistance(double maxDistance) {
+		this.maxDistance = maxDistance;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Matches all pairs of {@code clouds}, with the same output as
+	 * {@link DescriptorMatcher#match}.
+	 *
+	 * @param model the model to fit, which must be invertible and is copied for
+	 *          each pair; its initial state is the starting point of the search
+	 */
+	public Vector<ComparePair> match(List<PointCloud> clouds,
+		AbstractModel<?> model)
+	{
+		List<Future<KDTree<Integer>>> treeFutures = new ArrayList<>();
+		for (PointCloud cloud : clouds) {
+			treeFutures.add(cloud.size() == 0 ? null : executor.submit(
+				() -> DescriptorMatcher.tree(cloud, numDimensions)));
+		}
+		List<KDTree<Integer>> trees = new ArrayList<>();
+		for (Future<KDTree<Integer>> future : treeFutures) {
+			trees.add(future == null ? null : DescriptorMatcher.get(future));
+		}
+
+		Vector<ComparePair> comparePairs = new Vector<>();
+		for (int a = 0; a < clouds.size(); a++) {
+			for (int b = a + 1; b < clouds.size(); b++) {
+				ComparePair comparePair = new ComparePair(a, b, model);
+				AbstractModel<?> fitted = model.copy();
+				comparePair.inliers = trees.get(a) == null || trees.get(b) == null
+					? new ArrayList<>() : icp(clouds.get(a), trees.get(a), clouds.get(b),
+						trees.get(b), fitted);
+				comparePair.model = fitted;
+				comparePairs.add(comparePair);
+			}
+		}
+		return comparePairs;
+	}
+
+	private ArrayList<PointMatch> icp(PointCloud cloudA, KDTree<Integer> treeA,
+		PointCloud cloudB, KDTree<Integer> treeB, AbstractModel<?> model)
+	{
+		Point[] pointsA = points(cloudA);
+		Point[] pointsB = points(cloudB);
+		ArrayList<PointMatch> inliers = new ArrayList<>();
+		int[] partners = null;
+		for (int it = 0; it < maxIterations; it++) {
+			int[] current = correspondences(cloudA, treeA, cloudB, treeB, model);
+			if (Arrays.equals(current, partners)) break;
+			partners = current;
+			List<PointMatch> candidates = new ArrayList<>();
+			for (int i = 0; i < partners.length; i++) {
+				if (partners[i] >= 0) {
+					candidates.add(new PointMatch(pointsA[i], pointsB[partners[i]]));
+				}
+			}
+			inliers = new ArrayList<>();
+			try {
+				if (!model.filter(candidates, inliers)) return new ArrayList<>();
+			}
+			catch (NotEnoughDataPointsException exc) {
+				return new ArrayList<>();
+			}
+		}
+		return inliers;
+	}
+
+	/**
+	 * Returns the index of the mutual nearest neighbor in {@code cloudB} for
+	 * each point of {@code cloudA} mapped by {@code model}, or -1 if there is
+	 * none within {@code maxDistance}.
+	 */
+	private int[] correspondences(PointCloud cloudA, KDTree<Integer> treeA,
+		PointCloud cloudB, KDTree<Integer> treeB, AbstractModel<?> model)
+	{
+		InvertibleCoordinateTransform inverse =
+			(InvertibleCoordinateTransform) model;
+		int[] partners = new int[cloudA.size()];
+		List<Future<?>> futures = new ArrayList<>();
+		for (int[] chunk : DescriptorMatcher.chunks(cloudA.size(), numTasks)) {
+			futures.add(executor.submit(() -> {
+				NearestNeighborSearchOnKDTree<Integer> searchA =
+					new NearestNeighborSearchOnKDTree<>(treeA);
+				NearestNeighborSearchOnKDTree<Integer> searchB =
+					new NearestNeighborSearchOnKDTree<>(treeB);
+				RealPoint query = new RealPoint(numDimensions);
+				double[] position = new double[numDimensions];
+				for (int i = chunk[0]; i < chunk[1]; i++) {
+					partners[i] = -1;
+					cloudA.localize(i, position);
+					model.applyInPlace(position);
+					query.setPosition(position);
+					searchB.search(query);
+					if (searchB.getDistance() > maxDistance) continue;
+					int j = searchB.getSampler().get();
+					cloudB.localize(j, position);
+					try {
+						inverse.applyInverseInPlace(position);
+					}
+					catch (NoninvertibleModelException exc) {
+						continue;
+					}
+					query.setPosition(position);
+					searchA.search(query);
+					if (searchA.getSampler().get() == i) partners[i] = j;
+				}
+			}));
+		}
+		DescriptorMatcher.await(futures);
+		return partners;
+	}
+
+	private Point[] points(PointCloud cloud) {
+		Point[] points = new Point[cloud.size()];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = DescriptorMatcher.point(cloud, i, numDimensions);
+		}
+		return points;
+	}
+}
@@ -1,21 +1,26 @@
-
 package ch.fmi.correction;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
 import net.imagej.axis.DefaultLinearAxis;
-import net.imagej.ops.OpService;
 import net.imglib2.KDTree;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
-import net.imglib2.RealPointSampleList;
-import net.imglib2.interpolation.neighborsearch.NearestNeighborSearchInterpolatorFactory;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 import org.scijava.ItemIO;
@@ -25,12 +30,27 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.util.CoarseGrid;
+import mpicbg.models.PointMatch;
 import process.ComparePair;
 
+/**
+ * Computes a map of the x, y and z residuals of the bead correspondences of a
+ * {@link ComparePair}, interpolated at each pixel from the nearest beads. The
+ * residual vectors are stored in a single KD-tree, and the map is rasterized
+ * in parallel into a channel per residual component, optionally on a coarse
+ * grid only.
+ */
 @Plugin(type = Command.class,
 	menuPath = "FMI > Multi-Channel Image Correction > Compute Residual Distance Map")
 public class ResidualDistanceMap extends ContextCommand {
 
+	private static final String NEAREST_NEIGHBOR = "Nearest neighbor";
+	private static final String K_NEAREST_NEIGHBORS = "Mean of k nearest neighbors";
+	private static final String INVERSE_DISTANCE_WEIGHTING = "Inverse distance weighting";
+
 	@Parameter
 	private Dataset dataset;
 
@@ -43,87 +63,212 @@ public class ResidualDistanceMap extends ContextCommand {
 	@Parameter(required = false)
 	private AffineGet transform;
 
+	@Parameter(label = "Interpolation", choices = { NEAREST_NEIGHBOR,
+		K_NEAREST_NEIGHBORS, INVERSE_DISTANCE_WEIGHTING })
+	private String interpolation = NEAREST_NEIGHBOR;
+
+	@Parameter(label = "Number of neighbors (k-NN and IDW)", min = "1")
+	private Integer numNeighbors = 5;
+
+	@Parameter(label = "IDW power", min = "0")
+	private Double power = 2.0;
+
+	@Parameter(label = "Grid step (pixels, 1 = every pixel)", min = "1")
+	private Integer gridStep = 1;
+
+	@Parameter(label = "Upsample coarse map to full resolution (lazily)")
+	private Boolean upsample = false;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private Dataset result;
 
 	@Parameter
 	private DatasetService datasetService;
 
-	@Parameter
-	private OpService opService;
-
 	@Parameter
 	private LogService logService;
 
-	private double[] targetLoc;
-	private double[] calibratedLoc;
-	private double distX;
-	private double distY;
-	private double distZ;
+	@Parameter
+	private MetricsService metricsService;
 
 	@Override
 	public void run() {
-		// TODO initial dimensions?
-		RealPointSampleList<DoubleType> dx = new RealPointSampleList<>(3);
-		RealPointSampleList<DoubleType> dy = new RealPointSampleList<>(3);
-		RealPointSampleList<DoubleType> dz = new RealPointSampleList<>(3);
-		targetLoc = new double[3];
-		calibratedLoc = new double[3];
-
-		AffineTransform3D calibrationTransform = new AffineTransform3D();
-		calibrationTransform.scale(dataset.averageScale(0), dataset.averageScale(1),
-			dataset.averageScale(2));
-
-		comparePair.inliers.forEach(match -> {
-			double[] loc1 = match.getP1().getL();
-			double[] loc2 = match.getP2().getL();
-			if (specifyTransform && transform != null) {
-				transform.apply(loc2, targetLoc);
-				distX = loc1[0] - targetLoc[0];
-				distY = loc1[1] - targetLoc[1];
-				distZ = loc1[2] - targetLoc[2];
+		Metrics metrics = metricsService.start("Compute Residual Distance Map");
+		long stage = metrics.start();
+		List<double[]> residuals = new ArrayList<>();
+		List<RealPoint> positions = new ArrayList<>();
+		double[] targetLoc = new double[3];
+
+		AffineTransform3D inverseCalibration = CorrectionProfile.calibration(
+			CorrectionProfile.pixelSpacing(dataset)).inverse();
+		AffineGet transform3D = specifyTransform && transform != null
+			? CorrectionProfile.toAffine3D(transform) : null;
+
+		for (PointMatch match : comparePair.inliers) {
+			// matches of 2D models have 2D locations
+			double[] loc1 = to3D(match.getP1().getL());
+			double[] loc2 = to3D(match.getP2().getL());
+			double[] residual = new double[3];
+			if (transform3D != null) {
+				transform3D.apply(loc2, targetLoc);
+				for (int d = 0; d < 3; d++) {
+					residual[d] = loc1[d] - targetLoc[d];
+				}
 			}
 			else {
-				targetLoc = comparePair.model.apply(loc1);
-				distX = targetLoc[0] - loc2[0];
-				distY = targetLoc[1] - loc2[1];
-				distZ = targetLoc[2] - loc2[2];
+				double[] mapped = to3D(comparePair.model.apply(match.getP1().getL()));
+				for (int d = 0; d < 3; d++) {
+					residual[d] = mapped[d] - loc2[d];
+				}
 			}
-			calibrationTransform.inverse().apply(loc2, calibratedLoc);
-			dx.add(new RealPoint(calibratedLoc), new DoubleType(distX));
-			dy.add(new RealPoint(calibratedLoc), new DoubleType(distY));
-			dz.add(new RealPoint(calibratedLoc), new DoubleType(distZ));
-		});
-
-		// Create image and interpolate from sample list.
-		// TODO add KNearestNeighborSampling and InverseDistanceWeighting interpolation
-		NearestNeighborSearchOnKDTree<DoubleType> searchX = new NearestNeighborSearchOnKDTree<>(new KDTree<>(dx));
-		IntervalView<DoubleType> imgX = Views.interval(//
-			Views.raster(//
-				Views.interpolate(searchX,
-					new NearestNeighborSearchInterpolatorFactory<DoubleType>())),
-			dataset);
-
-		NearestNeighborSearchOnKDTree<DoubleType> searchY = new NearestNeighborSearchOnKDTree<>(new KDTree<>(dy));
-		IntervalView<DoubleType> imgY = Views.interval(//
-			Views.raster(//
-				Views.interpolate(searchY,
-					new NearestNeighborSearchInterpolatorFactory<DoubleType>())),
-			dataset);
-
-		NearestNeighborSearchOnKDTree<DoubleType> searchZ = new NearestNeighborSearchOnKDTree<>(new KDTree<>(dz));
-		IntervalView<DoubleType> imgZ = Views.interval(//
-			Views.raster(//
-				Views.interpolate(searchZ,
-					new NearestNeighborSearchInterpolatorFactory<DoubleType>())),
-			dataset);
-
-		RandomAccessibleInterval<DoubleType> resultImg = Views.stack(imgX, imgY, imgZ);
-
-		result = datasetService.create(resultImg);
+			double[] position = new double[3];
+			inverseCalibration.apply(loc2, position);
+			positions.add(new RealPoint(position));
+			residuals.add(residual);
+		}
+		if (residuals.isEmpty()) {
+			cancel("The compare pair has no inliers");
+			metricsService.finish(metrics);
+			return;
+		}
+		metrics.stop("residuals", stage);
+		metrics.count("beads", residuals.size());
+
+		long[] dims = { extent(Axes.X), extent(Axes.Y), extent(Axes.Z) };
+		long[] gridDims = CoarseGrid.dimensions(dims, gridStep);
+		PlanarImg<DoubleType, DoubleArray> img = PlanarImgs.doubles(gridDims[0],
+			gridDims[1], gridDims[2], 3);
+		int k = NEAREST_NEIGHBOR.equals(interpolation) ? 1 : Math.min(
+			numNeighbors, residuals.size());
+		double p = INVERSE_DISTANCE_WEIGHTING.equals(interpolation) ? power : 0;
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime()
+			.availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		stage = metrics.start();
+		try {
+			rasterize(new KDTree<>(residuals, positions), k, p, gridStep, img,
+				executor, 4 * threads);
+		}
+		finally {
+			executor.shutdown();
+		}
+		metrics.stop("rasterization", stage);
+		metrics.count("voxels written", img.size());
+
+		if (gridStep > 1 && upsample) {
+			List<RandomAccessibleInterval<DoubleType>> channels = new ArrayList<>();
+			for (int c = 0; c < 3; c++) {
+				channels.add(CoarseGrid.upsample(Views.hyperSlice(img, 3, c), gridStep,
+					dims));
+			}
+			result = datasetService.create(Views.stack(channels));
+		}
+		else {
+			result = datasetService.create(img);
+			if (gridStep > 1) {
+				result.setAxis(new DefaultLinearAxis(Axes.X, gridStep), 0);
+				result.setAxis(new DefaultLinearAxis(Axes.Y, gridStep), 1);
+				result.setAxis(new DefaultLinearAxis(Axes.Z, gridStep), 2);
+			}
+		}
 		result.setAxis(new DefaultLinearAxis(Axes.CHANNEL), result.numDimensions() - 1);
+		metricsService.finish(metrics);
+	}
+
+	private long extent(AxisType axis) {
+		int d = dataset.dimensionIndex(axis);
+		return d < 0 ? 1 : dataset.dimension(d);
+	}
+
+	/**
+	 * Fills the x, y, z planes of {@code img} (with one channel per residual
+	 * component as last dimension) with the residuals interpolated from
+	 * {@code tree} at every {@code step}-th pixel, splitting the rows into
+	 * {@code numTasks} tasks.
+	 */
+	static void rasterize(KDTree<double[]> tree, int k, double power, int step,
+		PlanarImg<DoubleType, DoubleArray> img, ExecutorService executor,
+		int numTasks)
+	{
+		int width = (int) img.dimension(0);
+		int height = (int) img.dimension(1);
+		int depth = (int) img.dimension(2);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int[] chunk : DescriptorMatcher.chunks(height * depth, numTasks)) {
+			futures.add(executor.submit(() -> {
+				Interpolator interpolator = new Interpolator(tree, k, power);
+				double[] position = new double[3];
+				double[] value = new double[3];
+				for (int row = chunk[0]; row < chunk[1]; row++) {
+					int y = row % height, z = row / height;
+					double[][] planes = new double[3][];
+					for (int c = 0; c < 3; c++) {
+						planes[c] = img.getPlane(c * depth + z).getCurrentStorageArray();
+					}
+					position[1] = y * step;
+					position[2] = z * step;
+					for (int x = 0, i = y * width; x < width; x++, i++) {
+						position[0] = x * step;
+						interpolator.interpolate(position, value);
+						planes[0][i] = value[0];
+						planes[1][i] = value[1];
+						planes[2][i] = value[2];
+					}
+				}
+			}));
+		}
+		DescriptorMatcher.await(futures);
+	}
+
+	/**
+	 * Interpolates vector samples from their {@code k} nearest neighbors,
+	 * weighted by the inverse distance to the power of {@code power}. A power
+	 * of zero averages the neighbors, and {@code k = 1} takes the nearest one.
+	 * Instances are not thread-safe.
+	 */
+	static class Interpolator {
+
+		private final KNearestNeighborSearchOnKDTree<double[]> search;
+		private final int k;
+		private final double power;
+		private final RealPoint query = new RealPoint(3);
+
+		Interpolator(KDTree<double[]> tree, int k, double power) {
+			this.search = new KNearestNeighborSearchOnKDTree<>(tree, k);
+			this.k = k;
+			this.power = power;
+		}
+
+		void interpolate(double[] position, double[] value) {
+			query.setPosition(position);
+			search.search(query);
+			if (k == 1 || power > 0 && search.getSquareDistance(0) == 0) {
+				double[] nearest = search.getSampler(0).get();
+				System.arraycopy(nearest, 0, value, 0, value.length);
+				return;
+			}
+			value[0] = value[1] = value[2] = 0;
+			double sum = 0;
+			for (int i = 0; i < k; i++) {
+				double weight = power == 0 ? 1 : Math.pow(search.getSquareDistance(i),
+					-0.5 * power);
+				double[] sample = search.getSampler(i).get();
+				for (int d = 0; d < 3; d++) {
+					value[d] += weight * sample[d];
+				}
+				sum += weight;
+			}
+			for (int d = 0; d < 3; d++) {
+				value[d] /= sum;
+			}
+		}
+	}
 
-		// Views.interpolate dx|dy|dz on interval
-		// Views.stack dx,dy,dz into channels
+	private static double[] to3D(double[] location) {
+		return location.length == 3 ? location : new double[] { location[0],
+			location[1], 0 };
 	}
 }
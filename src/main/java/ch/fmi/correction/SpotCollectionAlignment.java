@@ -4,10 +4,17 @@ package ch.fmi.correction;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
 
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
@@ -19,15 +26,22 @@ import org.scijava.object.ObjectService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
-import fiji.plugin.trackmate.Spot;
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.io.TransformContainer;
+import ch.fmi.util.PointCloud;
 import fiji.plugin.trackmate.SpotCollection;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.Affine2D;
+import mpicbg.models.AffineModel2D;
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.RigidModel2D;
 import mpicbg.models.RigidModel3D;
 import mpicbg.models.SimilarityModel3D;
+import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
 import plugin.DescriptorParameters;
 import process.ComparePair;
@@ -47,6 +61,12 @@ public class SpotCollectionAlignment extends ContextCommand {
 	private static final String RIGID_3D = "3d-rigid";
 	private static final String AFFINE_3D = "3d-affine";
 
+	private static final String DESCRIPTOR_BASED_REGISTRATION =
+		"Descriptor-based registration";
+	private static final String PARALLEL_MATCHING = "Parallel (built-in)";
+	private static final String NEAREST_NEIGHBOR_MATCHING =
+		"Mutual nearest neighbors + ICP (nearly aligned channels)";
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, required = false, persist = false)
 	private String message1 = "----- Channel detections -----";
 
@@ -82,6 +102,20 @@ public class SpotCollectionAlignment extends ContextCommand {
 		AFFINE_3D })
 	private String transformationType = SIMILARITY_3D;
 
+	@Parameter(label = "Matching engine", choices = {
+		DESCRIPTOR_BASED_REGISTRATION, PARALLEL_MATCHING,
+		NEAREST_NEIGHBOR_MATCHING })
+	private String matchingEngine = DESCRIPTOR_BASED_REGISTRATION;
+
+	@Parameter(label = "Max. distance of corresponding beads (nearest neighbors)", min = "0")
+	private Double maxDistance = 1.0;
+
+	@Parameter(label = "Max. ICP iterations (nearest neighbors)", min = "1")
+	private Integer maxIterations = 20;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
 	@Parameter(label = "Name to store transforms")
 	private String transformName;
 
@@ -97,6 +131,9 @@ public class SpotCollectionAlignment extends ContextCommand {
 	@Parameter(label = "Save Transforms to Output Directory")
 	private Boolean saveTransforms = false;
 
+	@Parameter(label = "Save all transforms in one container file (.transforms)")
+	private Boolean saveAsContainer = false;
+
 	@Parameter(style = "directory", required = false)
 	private File outputDirectory;
 
@@ -112,6 +149,9 @@ public class SpotCollectionAlignment extends ContextCommand {
 	@Parameter
 	private LogService logService;
 
+	@Parameter
+	private MetricsService metricsService;
+
 	@Override
 	public void run() {
 		// TODO ensure we have a single frame only (per SpotCollection)?
@@ -122,12 +162,36 @@ public class SpotCollectionAlignment extends ContextCommand {
 		if (process_ch3) spotCollections.add(spots3);
 		if (process_ch4) spotCollections.add(spots4);
 
-		// FIXME 2D cases not supported yet
-		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>peakListList = convertSpotsToPeaks(spotCollections);
-		logService.info(peakListList.size());
+		Metrics metrics = metricsService.start("Measure Transform Between Point Clouds");
+		long stage = metrics.start();
+		List<PointCloud> clouds = new ArrayList<>();
+		spotCollections.forEach(spots -> clouds.add(PointCloud.fromSpots(spots, false)));
+		metrics.stop("point cloud conversion", stage);
+		clouds.forEach(cloud -> metrics.count("spots", cloud.size()));
 		DescriptorParameters params = defaultParameters(transformationType);
-		Vector<ComparePair> comparePairs = Matching.descriptorMatching(peakListList, peakListList.size(), params, 1.0f);
-		logService.info(comparePairs.size());
+		long start = System.nanoTime();
+		Vector<ComparePair> comparePairs;
+		switch (matchingEngine) {
+			case PARALLEL_MATCHING:
+			case NEAREST_NEIGHBOR_MATCHING:
+				stage = metrics.start();
+				comparePairs = parallelMatching(clouds, params);
+				metrics.stop("matching", stage);
+				break;
+			default:
+				stage = metrics.start();
+				ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks =
+					convertToPeaks(clouds, params.dimensionality);
+				metrics.stop("peak conversion", stage);
+				stage = metrics.start();
+				comparePairs = Matching.descriptorMatching(peaks, clouds.size(), params, 1.0f);
+				metrics.stop("descriptor matching", stage);
+		}
+		logService.info(String.format("Matched %d channel pairs in %d ms (%s)",
+			comparePairs.size(), (System.nanoTime() - start) / 1000000, matchingEngine));
+		comparePairs.forEach(p -> logService.info("Channels " + (p.indexA + 1) +
+			" and " + (p.indexB + 1) + ": " + p.inliers.size() + " inliers"));
+		comparePairs.forEach(p -> metrics.count("inliers", p.inliers.size()));
 
 		/*
 		// 2-channel case (required?)
@@ -144,9 +208,12 @@ public class SpotCollectionAlignment extends ContextCommand {
 			});
 		}
 
-		ArrayList<InvertibleBoundable> models = Matching.globalOptimization(comparePairs, peakListList.size(), params);
+		stage = metrics.start();
+		ArrayList<InvertibleBoundable> models = Matching.globalOptimization(comparePairs, clouds.size(), params);
+		metrics.stop("global optimization", stage);
 		if (models == null) {
 			logService.error("No transformation models could be found.");
+			metricsService.finish(metrics);
 			return;
 		}
 		
@@ -155,12 +222,24 @@ public class SpotCollectionAlignment extends ContextCommand {
 			saveTransforms = false;
 		}
 
+		stage = metrics.start();
+		TransformContainer container = new TransformContainer();
 		for (int i = 0; i < models.size(); i++) {
 			AffineGet affine = convertService.convert(models.get(i), AffineGet.class);
+			if (AFFINE_2D_TRANSLATION_3D.equals(transformationType)) {
+				// lift the 2D model, and add the z shift to the reference channel
+				AffineTransform3D affine3D = CorrectionProfile.toAffine3D(affine);
+				affine3D.set(zShift(clouds.get(0), models.get(0), clouds.get(i), models.get(i), params.ransacThreshold), 2, 3);
+				logService.info("Z shift of channel " + (i + 1) + ": " + affine3D.get(2, 3));
+				affine = affine3D;
+			}
 			if (registerTransforms) {
 				objectService.addObject(affine, "C" + (i+1) + "-" + transformName);
 			}
-			if (saveTransforms) {
+			if (saveTransforms && saveAsContainer) {
+				container.put("C" + (i+1) + "-" + transformName, affine);
+			}
+			else if (saveTransforms) {
 				try {
 					ioService.save(affine, new File(outputDirectory, "C" + (i+1) + "-" + transformName + ".transform").getAbsolutePath());
 				} catch (IOException e) {
@@ -168,6 +247,15 @@ public class SpotCollectionAlignment extends ContextCommand {
 				}
 			}
 		}
+		if (saveTransforms && saveAsContainer) {
+			try {
+				ioService.save(container, new File(outputDirectory, transformName + TransformContainer.SUFFIX).getAbsolutePath());
+			} catch (IOException e) {
+				logService.error("Error when saving transforms", e);
+			}
+		}
+		metrics.stop("storing transforms", stage);
+		metricsService.finish(metrics);
 
 		// Quality assessment? Map of abs?({dx,dy,dz}) over xy plane for correspondences...
 		// => requires input image dimensions: separate plugin?
@@ -179,10 +267,15 @@ public class SpotCollectionAlignment extends ContextCommand {
 		DescriptorParameters params = new DescriptorParameters();
 		switch (transformType) {
 			case TRANSLATION_2D:
+				params.model = new TranslationModel2D();
+				break;
 			case RIGID_2D:
+				params.model = new RigidModel2D();
+				break;
 			case AFFINE_2D:
 			case AFFINE_2D_TRANSLATION_3D:
-				throw new RuntimeException("Not yet implemented.");
+				params.model = new AffineModel2D();
+				break;
 			case TRANSLATION_3D:
 				params.model = new TranslationModel3D();
 				break;
@@ -197,7 +290,7 @@ public class SpotCollectionAlignment extends ContextCommand {
 				params.model = new AffineModel3D();
 				break;
 		}
-		params.dimensionality = 3;
+		params.dimensionality = params.model instanceof Affine2D ? 2 : 3;
 		params.numNeighbors = 3;
 		params.significance = 3.0;
 		params.similarOrientation = true;
@@ -207,25 +300,86 @@ public class SpotCollectionAlignment extends ContextCommand {
 		return params;
 	}
 
-	private ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> convertSpotsToPeaks(
-		List<SpotCollection> spotCollections)
+	private Vector<ComparePair> parallelMatching(List<PointCloud> clouds,
+		DescriptorParameters params)
+	{
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			if (NEAREST_NEIGHBOR_MATCHING.equals(matchingEngine)) {
+				NearestNeighborMatcher matcher = new NearestNeighborMatcher(executor, 4 * threads);
+				matcher.setNumDimensions(params.dimensionality);
+				matcher.setMaxDistance(maxDistance);
+				matcher.setMaxIterations(maxIterations);
+				return matcher.match(clouds, params.model);
+			}
+			DescriptorMatcher matcher = new DescriptorMatcher(executor, 4 * threads);
+			matcher.setNumDimensions(params.dimensionality);
+			matcher.setNumNeighbors(params.numNeighbors);
+			matcher.setSignificance(params.significance);
+			matcher.setRansacThreshold(params.ransacThreshold);
+			return matcher.match(clouds, params.model);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the median z distance of the beads of {@code cloud} to their
+	 * nearest neighbor (in xy, within {@code maxDistance}) in the reference,
+	 * after mapping both by their 2D models.
+	 */
+	private static double zShift(PointCloud reference, InvertibleBoundable referenceModel,
+		PointCloud cloud, InvertibleBoundable model, double maxDistance)
 	{
-		// Create List<Peak> for each spot collection
+		if (reference.size() == 0) return 0;
+		List<Double> z = new ArrayList<>();
+		List<RealPoint> positions = new ArrayList<>();
+		double[] position = new double[2];
+		for (int i = 0; i < reference.size(); i++) {
+			reference.localize(i, position);
+			referenceModel.applyInPlace(position);
+			z.add(reference.z(i));
+			positions.add(new RealPoint(position));
+		}
+		NearestNeighborSearchOnKDTree<Double> search = new NearestNeighborSearchOnKDTree<>(new KDTree<>(z, positions));
+		double[] shifts = new double[cloud.size()];
+		int n = 0;
+		for (int i = 0; i < cloud.size(); i++) {
+			cloud.localize(i, position);
+			model.applyInPlace(position);
+			search.search(RealPoint.wrap(position));
+			if (search.getDistance() <= maxDistance) {
+				shifts[n++] = search.getSampler().get() - cloud.z(i);
+			}
+		}
+		if (n == 0) return 0;
+		Arrays.sort(shifts, 0, n);
+		return shifts[n / 2];
+	}
+
+	private ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> convertToPeaks(
+		List<PointCloud> clouds, int numDimensions)
+	{
+		// Create List<Peak> for each point cloud
 		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peakListList = new ArrayList<>();
-		double[] realPosition = new double[3];
-		int[] position = new int[3];
-		for (SpotCollection collection : spotCollections) {
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peakList = new ArrayList<>();
-			collection.iterable(false).forEach(spot -> peakList.add(createPeak(spot, realPosition, position)));
+		double[] realPosition = new double[numDimensions];
+		int[] position = new int[numDimensions];
+		for (PointCloud cloud : clouds) {
+			ArrayList<DifferenceOfGaussianPeak<FloatType>> peakList = new ArrayList<>(cloud.size());
+			for (int i = 0; i < cloud.size(); i++) {
+				cloud.localize(i, realPosition);
+				peakList.add(createPeak(realPosition, position));
+			}
 			peakListList.add(peakList);
 		}
 		return peakListList;
 	}
 
-	private DifferenceOfGaussianPeak<FloatType> createPeak(Spot spot,
-		double[] realPos, int[] pos)
+	private DifferenceOfGaussianPeak<FloatType> createPeak(double[] realPos,
+		int[] pos)
 	{
-		spot.localize(realPos);
 		for (int i = 0; i < realPos.length; i++) {
 			pos[i] = (int) realPos[i];
 		}
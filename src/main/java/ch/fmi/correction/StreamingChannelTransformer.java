@@ -0,0 +1,145 @@
+package ch.fmi.correction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.metrics.Metrics;
+import ch.fmi.metrics.MetricsService;
+import ch.fmi.transform.resample.ResamplingEngine;
+import ch.fmi.transform.resample.TransformedVirtualStack;
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+
+/**
+ * Applies channel transformations to a TIFF hyperstack without loading it
+ * into memory. The input is opened as a virtual stack, and the output is
+ * computed in slabs of z planes while it is written to disk, so peak memory
+ * is bounded by the slab size instead of the stack size.
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI > Multi-Channel Image Correction > Apply Channel Transformation (Streaming)")
+public class StreamingChannelTransformer extends ContextCommand {
+
+	@Parameter(label = "Input TIFF file")
+	private File inputFile;
+
+	@Parameter(label = "Output TIFF file", style = "save")
+	private File outputFile;
+
+	@Parameter
+	private Boolean transformCalibrated = true;
+
+	@Parameter
+	private Boolean transformChannel1 = false;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel1;
+
+	@Parameter
+	private Boolean transformChannel2 = true;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel2;
+
+	@Parameter
+	private Boolean transformChannel3 = true;
+
+	@Parameter(required = false)
+	private AffineGet affineChannel3;
+
+	@Parameter(label = "Number of z planes per slab", min = "1")
+	private Integer slabDepth = 16;
+
+	@Parameter(label = "Number of threads (0 = all processors)", min = "0")
+	private Integer numThreads = 0;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private MetricsService metricsService;
+
+	@Override
+	public void run() {
+		// the input planes are read from the file while the output is written
+		try {
+			Path output = outputFile.exists() ? outputFile.toPath().toRealPath()
+				: outputFile.toPath().toAbsolutePath().normalize();
+			if (inputFile.toPath().toRealPath().equals(output)) {
+				cancel("Output file must differ from the input file.");
+				return;
+			}
+		}
+		catch (IOException exc) {
+			cancel("Could not resolve " + inputFile + ": " + exc.getMessage());
+			return;
+		}
+		ImagePlus imp = IJ.openVirtual(inputFile.getAbsolutePath());
+		if (imp == null) {
+			cancel("Could not open " + inputFile);
+			return;
+		}
+
+		Calibration cal = imp.getCalibration();
+		CorrectionProfile correction = new CorrectionProfile(transformChannel1 ? affineChannel1 : null,
+			transformChannel2 ? affineChannel2 : null, transformChannel3 ? affineChannel3 : null);
+		double[] spacing = transformCalibrated ? new double[] { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth }
+			: new double[] { 1, 1, 1 };
+		AffineGet[] transforms = Arrays.copyOf(correction.pixelTransforms(spacing),
+			Math.min(3, imp.getNChannels()));
+		for (int c = 0; c < transforms.length; c++) {
+			if (transforms[c] != null) {
+				logService.info("Applying effective transform to channel index " + c + ": " + transforms[c]);
+			}
+		}
+
+		Metrics metrics = metricsService.start("Apply Channel Transformation (Streaming)");
+		int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = metrics.start();
+		boolean saved;
+		try {
+			ResamplingEngine engine = new ResamplingEngine(executor, 4 * threads);
+			TransformedVirtualStack stack = new TransformedVirtualStack(imp, transforms, slabDepth, engine);
+			ImagePlus result = new ImagePlus(imp.getTitle(), stack);
+			result.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+			result.setCalibration(cal);
+			if (imp.isComposite()) {
+				CompositeImage composite = new CompositeImage(result, ((CompositeImage) imp).getMode());
+				composite.setLuts(imp.getLuts());
+				result = composite;
+			}
+			FileSaver saver = new FileSaver(result);
+			saved = result.getStackSize() > 1 ? saver.saveAsTiffStack(outputFile.getAbsolutePath())
+				: saver.saveAsTiff(outputFile.getAbsolutePath());
+		}
+		finally {
+			executor.shutdown();
+		}
+		if (!saved) {
+			cancel("Could not save " + outputFile);
+			metrics.count("failures", 1);
+			metricsService.finish(metrics);
+			return;
+		}
+		metrics.stop("transformation and saving", start);
+		metrics.count("voxels written", (long) imp.getWidth() * imp.getHeight() * imp
+			.getStackSize());
+		metricsService.finish(metrics);
+	}
+}
@@ -0,0 +1,172 @@
+package ch.fmi.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Default {@link MetricsService}. Besides the setters, it is configured with
+ * the system properties {@code fmi.metrics} (enable), {@code fmi.metrics.file}
+ * (JSON lines file) and {@code fmi.metrics.jmx} (enable the MBean
+ * {@value #MBEAN_NAME}).
+ */
+@Plugin(type = Service.class)
+public class DefaultMetricsService extends AbstractService implements
+	MetricsService
+{
+
+	public static final String MBEAN_NAME = "ch.fmi.correction:type=Metrics";
+
+	@Parameter(required = false)
+	private LogService logService;
+
+	private volatile boolean enabled = Boolean.getBoolean("fmi.metrics");
+	private volatile File metricsFile = System.getProperty("fmi.metrics.file") ==
+		null ? null : new File(System.getProperty("fmi.metrics.file"));
+	private volatile boolean mbeanEnabled = Boolean.getBoolean("fmi.metrics.jmx");
+
+	private final Totals totals = new Totals();
+	private ObjectName registered;
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public void setMetricsFile(File file) {
+		this.metricsFile = file;
+	}
+
+	@Override
+	public void setMBeanEnabled(boolean enabled) {
+		this.mbeanEnabled = enabled;
+	}
+
+	@Override
+	public Metrics start(String name) {
+		return enabled ? new Metrics(name) : Metrics.DISABLED;
+	}
+
+	@Override
+	public void finish(Metrics metrics) {
+		if (!metrics.isEnabled()) return;
+		if (logService != null) {
+			logService.info("Metrics of " + metrics.name() + ": " + metrics
+				.summary());
+		}
+		File file = metricsFile;
+		if (file != null) {
+			append(file, metrics.toJson());
+		}
+		if (mbeanEnabled) {
+			register();
+			totals.add(metrics);
+		}
+	}
+
+	@Override
+	public void dispose() {
+		synchronized (this) {
+			if (registered == null) return;
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+			}
+			catch (JMException exc) {
+				// already gone
+			}
+			registered = null;
+		}
+	}
+
+	private synchronized void append(File file, String line) {
+		try {
+			Files.write(file.toPath(), Collections.singletonList(line),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		}
+		catch (IOException exc) {
+			if (logService != null) {
+				logService.warn("Could not write metrics to " + file, exc);
+			}
+		}
+	}
+
+	private synchronized void register() {
+		if (registered != null) return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(totals, name);
+				registered = name;
+			}
+		}
+		catch (JMException exc) {
+			if (logService != null) {
+				logService.warn("Could not register metrics MBean", exc);
+			}
+		}
+	}
+
+	private static class Totals implements MetricsMXBean {
+
+		private long runs;
+		private final Map<String, Long> nanos = new TreeMap<>();
+		private final Map<String, Long> counters = new TreeMap<>();
+
+		private synchronized void add(Metrics metrics) {
+			runs++;
+			String prefix = metrics.name() + ": ";
+			metrics.timers().forEach((stage, value) -> nanos.merge(prefix + stage,
+				value, Long::sum));
+			metrics.counters().forEach((counter, value) -> counters.merge(prefix +
+				counter, value, Long::sum));
+		}
+
+		@Override
+		public synchronized long getRuns() {
+			return runs;
+		}
+
+		@Override
+		public synchronized Map<String, Long> getTotalMillis() {
+			Map<String, Long> millis = new TreeMap<>();
+			nanos.forEach((stage, value) -> millis.put(stage, value / 1000000));
+			return millis;
+		}
+
+		@Override
+		public synchronized Map<String, Long> getCounters() {
+			return new TreeMap<>(counters);
+		}
+
+		@Override
+		public synchronized void reset() {
+			runs = 0;
+			nanos.clear();
+			counters.clear();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package ch.fmi.metrics;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stage timings and counters of one command run, e.g.
+ *
+ * <pre>
+ * long start = metrics.start();
+ * ...
+ * metrics.stop("resampling", start);
+ * metrics.count("voxels written", n);
+ * </pre>
+ *
+ * Stages and counters with the same name add up, and may be recorded from
+ * several threads. The {@link #DISABLED} instance ignores all calls, so that
+ * instrumented code costs next to nothing when metrics are off.
+ */
+public class Metrics {
+
+	/** Metrics that record nothing. */
+	public static final Metrics DISABLED = new Metrics(null);
+
+	private final String name;
+	private final Instant created = Instant.now();
+	private final Map<String, Long> nanos = new LinkedHashMap<>();
+	private final Map<String, Long> counters = new LinkedHashMap<>();
+
+	/**
+	 * @param name the name of the command (or other unit of work) measured
+	 */
+	public Metrics(String name) {
+		this.name = name;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public boolean isEnabled() {
+		return this != DISABLED;
+	}
+
+	/**
+	 * Returns the start time to pass to {@link #stop}.
+	 */
+	public long start() {
+		return isEnabled() ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Adds the time since {@code start} to {@code stage}.
+	 */
+	public void stop(String stage, long start) {
+		if (!isEnabled()) return;
+		long elapsed = System.nanoTime() - start;
+		synchronized (this) {
+			nanos.merge(stage, elapsed, Long::sum);
+		}
+	}
+
+	/**
+	 * Adds {@code n} to {@code counter}.
+	 */
+	public void count(String counter, long n) {
+		if (!isEnabled()) return;
+		synchronized (this) {
+			counters.merge(counter, n, Long::sum);
+		}
+	}
+
+	/**
+	 * Returns the total time of each stage in nanoseconds, in the order the
+	 * stages were first recorded.
+	 */
+	public synchronized Map<String, Long> timers() {
+		return new LinkedHashMap<>(nanos);
+	}
+
+	public synchronized Map<String, Long> counters() {
+		return new LinkedHashMap<>(counters);
+	}
+
+	/**
+	 * Returns a one-line summary like
+	 * {@code "matching 120.5 ms, saving 3.2 ms; inliers 812"}.
+	 */
+	public synchronized String summary() {
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+			if (summary.length() > 0) summary.append(", ");
+			summary.append(String.format("%s %.1f ms", entry.getKey(), entry
+				.getValue() / 1e6));
+		}
+		String separator = summary.length() > 0 ? "; " : "";
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			summary.append(separator).append(entry.getKey()).append(' ').append(entry
+				.getValue());
+			separator = ", ";
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * Returns the metrics as a single-line JSON object, with the times in
+	 * milliseconds.
+	 */
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder("{\"command\":");
+		quote(json, name).append(",\"timestamp\":");
+		quote(json, created.toString()).append(",\"timers_ms\":{");
+		String separator = "";
+		for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+			quote(json.append(separator), entry.getKey()).append(':').append(entry
+				.getValue() / 1e6);
+			separator = ",";
+		}
+		json.append("},\"counters\":{");
+		separator = "";
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			quote(json.append(separator), entry.getKey()).append(':').append(entry
+				.getValue());
+			separator = ",";
+		}
+		return json.append("}}").toString();
+	}
+
+	private static StringBuilder quote(StringBuilder json, String value) {
+		json.append('"');
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') json.append('\\').append(c);
+			else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+			else json.append(c);
+		}
+		return json.append('"');
+	}
+}
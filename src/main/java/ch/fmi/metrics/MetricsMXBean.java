@@ -0,0 +1,18 @@
+package ch.fmi.metrics;
+
+import java.util.Map;
+
+/**
+ * Metrics summed up over all runs, keyed by command and stage (or counter)
+ * name.
+ */
+public interface MetricsMXBean {
+
+	long getRuns();
+
+	Map<String, Long> getTotalMillis();
+
+	Map<String, Long> getCounters();
+
+	void reset();
+}
@@ -0,0 +1,40 @@
+package ch.fmi.metrics;
+
+import java.io.File;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * Hands out {@link Metrics} to commands and reports them when the commands
+ * are done: to the log, optionally as JSON lines appended to a file, and
+ * optionally summed up over all runs in a JMX MBean. Metrics are disabled by
+ * default, or enabled with the system property {@code fmi.metrics=true}.
+ */
+public interface MetricsService extends SciJavaService {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Sets the file to append the metrics of each run to, or {@code null} for
+	 * none.
+	 */
+	void setMetricsFile(File file);
+
+	/**
+	 * Sets whether to sum up the metrics of all runs in an MBean.
+	 */
+	void setMBeanEnabled(boolean enabled);
+
+	/**
+	 * Returns new metrics for a run of {@code name}, or {@link Metrics#DISABLED}
+	 * if metrics are disabled.
+	 */
+	Metrics start(String name);
+
+	/**
+	 * Reports the metrics of a completed run.
+	 */
+	void finish(Metrics metrics);
+}
@@ -0,0 +1,162 @@
+package ch.fmi.transform;
+
+/**
+ * A smooth, spatially varying displacement field sampled on a coarse regular
+ * grid. The field maps each position {@code x} of the corrected (reference)
+ * image to the position {@code x + u(x)} in the image to correct, so it can be
+ * used for resampling directly. Displacements between grid nodes are
+ * interpolated trilinearly, and positions outside of the grid get the
+ * displacement of the nearest border node.
+ */
+public class DeformationField {
+
+	private final int[] dimensions;
+	private final double[] origin;
+	private final double[] spacing;
+	private final float[] displacements;
+
+	/**
+	 * @param dimensions the number of grid nodes along x, y and z
+	 * @param origin the position of the first grid node
+	 * @param spacing the distance of grid nodes along x, y and z
+	 * @param displacements the x, y and z displacement of each node,
+	 *          interleaved, with x varying fastest
+	 */
+	public DeformationField(int[] dimensions, double[] origin, double[] spacing,
+		float[] displacements)
+	{
+		if (dimensions.length != 3 || origin.length != 3 || spacing.length != 3) {
+			throw new IllegalArgumentException("Deformation fields must be 3D");
+		}
+		if (displacements.length != 3 * dimensions[0] * dimensions[1] *
+			dimensions[2])
+		{
+			throw new IllegalArgumentException(
+				"Number of displacements does not match the grid dimensions");
+		}
+		this.dimensions = dimensions.clone();
+		this.origin = origin.clone();
+		this.spacing = spacing.clone();
+		this.displacements = displacements;
+	}
+
+	public int[] dimensions() {
+		return dimensions.clone();
+	}
+
+	public double[] origin() {
+		return origin.clone();
+	}
+
+	public double[] spacing() {
+		return spacing.clone();
+	}
+
+	/**
+	 * Returns the interleaved node displacements, without copying them.
+	 */
+	public float[] displacements() {
+		return displacements;
+	}
+
+	/**
+	 * Writes the interpolated displacement at {@code position} to
+	 * {@code displacement}.
+	 */
+	public void displacement(double[] position, double[] displacement) {
+		int[] index = new int[3];
+		double[] f = new double[3];
+		for (int d = 0; d < 3; d++) {
+			gridPosition(position[d], d, index, f);
+		}
+		int nx = dimensions[0], nxy = nx * dimensions[1];
+		for (int k = 0; k < 3; k++) {
+			double v = 0;
+			for (int c = 0; c < 8; c++) {
+				int dx = c & 1, dy = (c >> 1) & 1, dz = c >> 2;
+				double weight = (dx == 0 ? 1 - f[0] : f[0]) * (dy == 0 ? 1 - f[1]
+					: f[1]) * (dz == 0 ? 1 - f[2] : f[2]);
+				if (weight != 0) {
+					v += weight * displacements[3 * ((index[2] + dz) * nxy + (index[1] +
+						dy) * nx + index[0] + dx) + k];
+				}
+			}
+			displacement[k] = v;
+		}
+	}
+
+	/**
+	 * Writes the x, y and z displacement of the positions {@code (x, y, z)} for
+	 * {@code x = 0 .. width - 1} to {@code ux}, {@code uy} and {@code uz}. The
+	 * grid nodes along the row are interpolated in y and z once, so each
+	 * position only needs a linear interpolation along x.
+	 */
+	public void row(double y, double z, int width, double[] ux, double[] uy,
+		double[] uz)
+	{
+		int[] index = new int[3];
+		double[] f = new double[3];
+		gridPosition(y, 1, index, f);
+		gridPosition(z, 2, index, f);
+		int nx = dimensions[0], nxy = nx * dimensions[1];
+		int i00 = 3 * (index[2] * nxy + index[1] * nx);
+		int i10 = i00 + (dimensions[1] > 1 ? 3 * nx : 0);
+		int i01 = i00 + (dimensions[2] > 1 ? 3 * nxy : 0);
+		int i11 = i10 + (i01 - i00);
+		double w00 = (1 - f[1]) * (1 - f[2]), w10 = f[1] * (1 - f[2]);
+		double w01 = (1 - f[1]) * f[2], w11 = f[1] * f[2];
+		double[] nodes = new double[3 * nx];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = w00 * displacements[i00 + i] + w10 * displacements[i10 + i] +
+				w01 * displacements[i01 + i] + w11 * displacements[i11 + i];
+		}
+		for (int x = 0; x < width; x++) {
+			gridPosition(x, 0, index, f);
+			int i0 = 3 * index[0];
+			int i1 = i0 + (nx > 1 ? 3 : 0);
+			double fx = f[0];
+			ux[x] = nodes[i0] + fx * (nodes[i1] - nodes[i0]);
+			uy[x] = nodes[i0 + 1] + fx * (nodes[i1 + 1] - nodes[i0 + 1]);
+			uz[x] = nodes[i0 + 2] + fx * (nodes[i1 + 2] - nodes[i0 + 2]);
+		}
+	}
+
+	/**
+	 * Returns this field in the pixel coordinates of an image with the given
+	 * pixel spacing, assuming this field is in calibrated units.
+	 */
+	public DeformationField toPixels(double... pixelSpacing) {
+		double[] pixelOrigin = new double[3];
+		double[] gridSpacing = new double[3];
+		for (int d = 0; d < 3; d++) {
+			pixelOrigin[d] = origin[d] / pixelSpacing[d];
+			gridSpacing[d] = spacing[d] / pixelSpacing[d];
+		}
+		float[] scaled = new float[displacements.length];
+		for (int i = 0; i < scaled.length; i++) {
+			scaled[i] = (float) (displacements[i] / pixelSpacing[i % 3]);
+		}
+		return new DeformationField(dimensions, pixelOrigin, gridSpacing, scaled);
+	}
+
+	/**
+	 * Computes the lower grid node index and the interpolation weight of
+	 * {@code position} along dimension {@code d}, clamped to the grid.
+	 */
+	private void gridPosition(double position, int d, int[] index, double[] f) {
+		double g = (position - origin[d]) / spacing[d];
+		int n = dimensions[d];
+		if (n == 1 || g <= 0) {
+			index[d] = 0;
+			f[d] = 0;
+		}
+		else if (g >= n - 1) {
+			index[d] = n - 2;
+			f[d] = 1;
+		}
+		else {
+			index[d] = (int) g;
+			f[d] = g - index[d];
+		}
+	}
+}
@@ -1,15 +1,13 @@
 package ch.fmi.transform.io;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 import net.imglib2.realtransform.AffineTransform2D;
 
 import org.scijava.io.AbstractIOPlugin;
 import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = IOPlugin.class)
@@ -17,6 +15,9 @@ public class AffineTransform2DInput extends AbstractIOPlugin<AffineTransform2D>
 	
 	private static String suffix = ".transform";
 
+	@Parameter(required = false)
+	private TransformRegistryService registry;
+
 	@Override
 	public Class<AffineTransform2D> getDataType() {
 		return AffineTransform2D.class;
@@ -25,12 +26,12 @@ public class AffineTransform2DInput extends AbstractIOPlugin<AffineTransform2D>
 	@Override
 	public boolean supportsOpen(String source) {
 		if (!source.endsWith(suffix)) return false;
-		File file = new File(source);
-		try (FileInputStream fis = new FileInputStream(file); DataInputStream dis = new DataInputStream(fis)) {
-			return (dis.readInt() == 2);
+		if (registry == null) {
+			return TransformContainer.peekDimensions(Paths.get(source)) == 2;
 		}
-		catch (FileNotFoundException exc) {
-			return false;
+		// parses the file once, the subsequent open is a cache lookup
+		try {
+			return registry.get(Paths.get(source)).numDimensions() == 2;
 		}
 		catch (IOException exc) {
 			return false;
@@ -39,16 +40,9 @@ public class AffineTransform2DInput extends AbstractIOPlugin<AffineTransform2D>
 
 	@Override
 	public AffineTransform2D open(String source) throws IOException {
-		File file = new File(source);
-		try (FileInputStream fis = new FileInputStream(file); DataInputStream dis = new DataInputStream(fis)) {
-			dis.readInt(); // Ignore number of dimensions here
-			AffineTransform2D affine = new AffineTransform2D();
-			double[] values = new double[6];
-			for (int i=0; i<values.length; i++) {
-				values[i] = dis.readDouble();
-			}
-			affine.set(values);
-			return affine;
+		if (registry == null) {
+			return (AffineTransform2D) TransformContainer.readSingle(Paths.get(source));
 		}
+		return (AffineTransform2D) registry.get(Paths.get(source));
 	}
 }
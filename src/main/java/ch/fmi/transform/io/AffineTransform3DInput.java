@@ -1,15 +1,13 @@
 package ch.fmi.transform.io;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
 import org.scijava.io.AbstractIOPlugin;
 import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 @Plugin(type = IOPlugin.class)
@@ -17,6 +15,9 @@ public class AffineTransform3DInput extends AbstractIOPlugin<AffineTransform3D>
 	
 	private static String suffix = ".transform";
 
+	@Parameter(required = false)
+	private TransformRegistryService registry;
+
 	@Override
 	public Class<AffineTransform3D> getDataType() {
 		return AffineTransform3D.class;
@@ -25,12 +26,12 @@ public class AffineTransform3DInput extends AbstractIOPlugin<AffineTransform3D>
 	@Override
 	public boolean supportsOpen(String source) {
 		if (!source.endsWith(suffix)) return false;
-		File file = new File(source);
-		try (FileInputStream fis = new FileInputStream(file); DataInputStream dis = new DataInputStream(fis)) {
-			return (dis.readInt() == 3);
+		if (registry == null) {
+			return TransformContainer.peekDimensions(Paths.get(source)) == 3;
 		}
-		catch (FileNotFoundException exc) {
-			return false;
+		// parses the file once, the subsequent open is a cache lookup
+		try {
+			return registry.get(Paths.get(source)).numDimensions() == 3;
 		}
 		catch (IOException exc) {
 			return false;
@@ -39,16 +40,9 @@ public class AffineTransform3DInput extends AbstractIOPlugin<AffineTransform3D>
 
 	@Override
 	public AffineTransform3D open(String source) throws IOException {
-		File file = new File(source);
-		try (FileInputStream fis = new FileInputStream(file); DataInputStream dis = new DataInputStream(fis)) {
-			dis.readInt(); // Ignore number of dimensions here
-			AffineTransform3D affine = new AffineTransform3D();
-			double[] values = new double[12];
-			for (int i=0; i<values.length; i++) {
-				values[i] = dis.readDouble();
-			}
-			affine.set(values);
-			return affine;
+		if (registry == null) {
+			return (AffineTransform3D) TransformContainer.readSingle(Paths.get(source));
 		}
+		return (AffineTransform3D) registry.get(Paths.get(source));
 	}
 }
@@ -0,0 +1,174 @@
+package ch.fmi.transform.io;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+/**
+ * Caches parsed transform files keyed by path and modification time.
+ * Concurrent lookups of a file that is not cached yet wait for a single load,
+ * and the directories of cached files are watched, so that entries of
+ * changed or deleted files are dropped right away. As file events may arrive
+ * late on some platforms, the modification time is checked on each lookup
+ * as well.
+ */
+@Plugin(type = Service.class)
+public class DefaultTransformRegistryService extends AbstractService implements
+	TransformRegistryService
+{
+
+	@Parameter(required = false)
+	private LogService logService;
+
+	private final Map<Path, Entry> cache = new ConcurrentHashMap<>();
+	private final Map<Path, WatchKey> watchedDirectories =
+		new ConcurrentHashMap<>();
+	private WatchService watchService;
+	private Thread watcher;
+
+	@Override
+	public AffineGet get(Path path) throws IOException {
+		TransformContainer container = container(path);
+		if (container.size() != 1) {
+			throw new IOException(path + " contains " + container.size() +
+				" transforms, expected one");
+		}
+		return container.get(container.names().iterator().next()).copy();
+	}
+
+	@Override
+	public AffineGet get(Path path, String name) throws IOException {
+		AffineGet transform = container(path).get(name);
+		return transform == null ? null : transform.copy();
+	}
+
+	@Override
+	public void invalidate(Path path) {
+		cache.remove(path.toAbsolutePath().normalize());
+	}
+
+	@Override
+	public void dispose() {
+		synchronized (this) {
+			if (watchService != null) {
+				try {
+					watchService.close();
+				}
+				catch (IOException exc) {
+					// nothing left to clean up
+				}
+				watcher.interrupt();
+				watchService = null;
+			}
+		}
+		cache.clear();
+		watchedDirectories.clear();
+	}
+
+	private TransformContainer container(Path path) throws IOException {
+		Path key = path.toAbsolutePath().normalize();
+		FileTime modified = Files.getLastModifiedTime(key);
+		Entry entry = cache.compute(key, (k, cached) -> cached != null &&
+			cached.modified.equals(modified) ? cached : new Entry(modified,
+				new FutureTask<>(() -> TransformContainer.read(k))));
+		// only the first caller loads the file, all others wait for it
+		entry.task.run();
+		try {
+			TransformContainer container = entry.task.get();
+			watch(key.getParent());
+			return container;
+		}
+		catch (ExecutionException exc) {
+			cache.remove(key, entry);
+			if (exc.getCause() instanceof IOException) {
+				throw (IOException) exc.getCause();
+			}
+			throw new IOException("Could not read " + path, exc.getCause());
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + path, exc);
+		}
+	}
+
+	private void watch(Path directory) {
+		if (directory == null || watchedDirectories.containsKey(directory)) return;
+		synchronized (this) {
+			if (watchedDirectories.containsKey(directory)) return;
+			try {
+				if (watchService == null) {
+					watchService = FileSystems.getDefault().newWatchService();
+					WatchService service = watchService;
+					watcher = new Thread(() -> processEvents(service),
+						"transform-registry-watcher");
+					watcher.setDaemon(true);
+					watcher.start();
+				}
+				watchedDirectories.put(directory, directory.register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE));
+			}
+			catch (IOException exc) {
+				// lookups still check the modification time
+				if (logService != null) {
+					logService.debug("Cannot watch " + directory, exc);
+				}
+			}
+		}
+	}
+
+	private void processEvents(WatchService service) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				Path directory = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						cache.keySet().removeIf(p -> directory.equals(p.getParent()));
+					}
+					else {
+						cache.remove(directory.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					watchedDirectories.remove(directory);
+					cache.keySet().removeIf(p -> directory.equals(p.getParent()));
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException exc) {
+			// disposed
+		}
+	}
+
+	private static class Entry {
+
+		private final FileTime modified;
+		private final FutureTask<TransformContainer> task;
+
+		private Entry(FileTime modified, FutureTask<TransformContainer> task) {
+			this.modified = modified;
+			this.task = task;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package ch.fmi.transform.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Many named affine transforms stored in one file. The file consists of a
+ * header (magic number, format version, number of transforms), an index with
+ * the name, number of dimensions and data offset of each transform, and the
+ * row-packed matrices as consecutive doubles. All values are big-endian, as
+ * in single {@code .transform} files, which start with the number of
+ * dimensions followed by the matrix. Files are read with a single bulk read,
+ * or memory-mapped if they are large.
+ */
+public class TransformContainer {
+
+	public static final String SUFFIX = ".transforms";
+
+	static final int MAGIC = 0x464d4954; // "FMIT"
+	static final int VERSION = 1;
+
+	/** Files larger than this are memory-mapped instead of read. */
+	private static final long MAP_THRESHOLD = 1 << 20;
+
+	private final Map<String, AffineGet> transforms = new LinkedHashMap<>();
+
+	public void put(String name, AffineGet transform) {
+		int n = transform.numDimensions();
+		if (n != 2 && n != 3) {
+			throw new IllegalArgumentException(
+				"Cannot handle number of dimensions: " + n);
+		}
+		transforms.put(name, transform);
+	}
+
+	/**
+	 * Returns the transform with the given name, or {@code null} if there is
+	 * none.
+	 */
+	public AffineGet get(String name) {
+		return transforms.get(name);
+	}
+
+	public Set<String> names() {
+		return Collections.unmodifiableSet(transforms.keySet());
+	}
+
+	public int size() {
+		return transforms.size();
+	}
+
+	/**
+	 * Reads a container, or a single {@code .transform} file as a container
+	 * with one transform named like the file without suffix.
+	 */
+	public static TransformContainer read(Path path) throws IOException {
+		try {
+			return read(path, load(path));
+		}
+		catch (BufferUnderflowException | IllegalArgumentException exc) {
+			throw new IOException("Corrupt transform file: " + path, exc);
+		}
+	}
+
+	private static TransformContainer read(Path path, ByteBuffer buffer)
+		throws IOException
+	{
+		TransformContainer container = new TransformContainer();
+		int first = buffer.getInt();
+		if (first != MAGIC) {
+			buffer.rewind();
+			String name = path.getFileName().toString();
+			container.put(name.substring(0, name.lastIndexOf('.') < 0 ? name
+				.length() : name.lastIndexOf('.')), readSingle(buffer));
+			return container;
+		}
+		int version = buffer.getInt();
+		if (version > VERSION) {
+			throw new IOException("Unsupported transform container version " +
+				version + " in " + path);
+		}
+		int count = buffer.getInt();
+		List<String> names = new ArrayList<>(count);
+		int[] dims = new int[count];
+		long[] offsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[buffer.getShort() & 0xffff];
+			buffer.get(name);
+			names.add(new String(name, StandardCharsets.UTF_8));
+			dims[i] = buffer.getInt();
+			offsets[i] = buffer.getLong();
+			if (dims[i] != 2 && dims[i] != 3) {
+				throw new IOException("Cannot handle number of dimensions: " +
+					dims[i]);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			double[] values = new double[dims[i] * (dims[i] + 1)];
+			buffer.position((int) offsets[i]);
+			buffer.asDoubleBuffer().get(values);
+			container.put(names.get(i), affine(dims[i], values));
+		}
+		return container;
+	}
+
+	public void write(Path path) throws IOException {
+		List<byte[]> names = new ArrayList<>();
+		long size = 12;
+		for (Map.Entry<String, AffineGet> entry : transforms.entrySet()) {
+			byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xffff) {
+				throw new IOException("Transform name too long: " + entry.getKey());
+			}
+			names.add(name);
+			int n = entry.getValue().numDimensions();
+			size += 2 + name.length + 4 + 8 + 8 * n * (n + 1);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(transforms.size());
+		long offset = 12;
+		for (byte[] name : names) {
+			offset += 2 + name.length + 4 + 8;
+		}
+		int i = 0;
+		for (AffineGet transform : transforms.values()) {
+			byte[] name = names.get(i++);
+			int n = transform.numDimensions();
+			buffer.putShort((short) name.length).put(name).putInt(n).putLong(offset);
+			offset += 8 * n * (n + 1);
+		}
+		for (AffineGet transform : transforms.values()) {
+			for (double value : transform.getRowPackedCopy()) {
+				buffer.putDouble(value);
+			}
+		}
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads a single {@code .transform} file.
+	 */
+	public static AffineGet readSingle(Path path) throws IOException {
+		try {
+			return readSingle(load(path));
+		}
+		catch (BufferUnderflowException exc) {
+			throw new IOException("Corrupt transform file: " + path, exc);
+		}
+	}
+
+	/**
+	 * Returns the number of dimensions stored at the start of a single
+	 * {@code .transform} file, reading only these four bytes, or -1 if the file
+	 * cannot be read.
+	 */
+	public static int peekDimensions(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(4);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) return -1;
+			}
+			buffer.flip();
+			return buffer.getInt();
+		}
+		catch (IOException exc) {
+			return -1;
+		}
+	}
+
+	private static AffineGet readSingle(ByteBuffer buffer) throws IOException {
+		int n = buffer.getInt();
+		if (n != 2 && n != 3) {
+			throw new IOException("Cannot handle number of dimensions: " + n);
+		}
+		double[] values = new double[n * (n + 1)];
+		buffer.asDoubleBuffer().get(values);
+		return affine(n, values);
+	}
+
+	private static AffineGet affine(int n, double[] values) {
+		if (n == 2) {
+			AffineTransform2D affine = new AffineTransform2D();
+			affine.set(values);
+			return affine;
+		}
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.set(values);
+		return affine;
+	}
+
+	/**
+	 * Returns the content of {@code path}, read in one go or memory-mapped.
+	 */
+	private static ByteBuffer load(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAP_THRESHOLD) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) throw new EOFException(path.toString());
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+}
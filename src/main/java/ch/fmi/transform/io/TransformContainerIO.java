@@ -0,0 +1,39 @@
+package ch.fmi.transform.io;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import org.scijava.io.AbstractIOPlugin;
+import org.scijava.io.IOPlugin;
+import org.scijava.plugin.Plugin;
+
+@Plugin(type = IOPlugin.class)
+public class TransformContainerIO extends AbstractIOPlugin<TransformContainer> {
+
+	@Override
+	public Class<TransformContainer> getDataType() {
+		return TransformContainer.class;
+	}
+
+	@Override
+	public boolean supportsOpen(String source) {
+		return source.endsWith(TransformContainer.SUFFIX);
+	}
+
+	@Override
+	public boolean supportsSave(String destination) {
+		return destination.endsWith(TransformContainer.SUFFIX);
+	}
+
+	@Override
+	public TransformContainer open(String source) throws IOException {
+		return TransformContainer.read(Paths.get(source));
+	}
+
+	@Override
+	public void save(TransformContainer container, String destination)
+		throws IOException
+	{
+		container.write(Paths.get(destination));
+	}
+}
@@ -0,0 +1,33 @@
+package ch.fmi.transform.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import net.imglib2.realtransform.AffineGet;
+
+import org.scijava.service.SciJavaService;
+
+/**
+ * Caches the transforms of {@code .transform} and {@code .transforms} files,
+ * so that repeated lookups do not parse the files again. Cached files are
+ * reloaded once they have been modified.
+ */
+public interface TransformRegistryService extends SciJavaService {
+
+	/**
+	 * Returns (a copy of) the transform of a single {@code .transform} file, or
+	 * of a container holding exactly one transform.
+	 */
+	AffineGet get(Path path) throws IOException;
+
+	/**
+	 * Returns (a copy of) the transform named {@code name} in a container, or
+	 * {@code null} if there is none.
+	 */
+	AffineGet get(Path path, String name) throws IOException;
+
+	/**
+	 * Removes the transforms of {@code path} from the cache.
+	 */
+	void invalidate(Path path);
+}
@@ -0,0 +1,138 @@
+package ch.fmi.transform.resample;
+
+import static ch.fmi.transform.resample.LinearResampler.boundary;
+import static ch.fmi.transform.resample.LinearResampler.floor;
+import static ch.fmi.transform.resample.LinearResampler.inside;
+import static ch.fmi.transform.resample.LinearResampler.interpolate;
+
+import java.util.Arrays;
+
+import net.imglib2.Interval;
+
+import ch.fmi.transform.DeformationField;
+
+/**
+ * N-linear resampling through a {@link DeformationField} in pixel units,
+ * working directly on {@link Planes}. The displacements of a target row are
+ * looked up from the coarse grid once per row, so each voxel costs one
+ * interpolation of the source, as for affine resampling. Values are zero
+ * outside of the source, and are rounded to the nearest integer for integer
+ * types. Single plane sources are resampled in 2D, ignoring z displacements.
+ */
+final class DeformationResampler {
+
+	private DeformationResampler() {
+		// avoid instantiation of utility class
+	}
+
+	static boolean supports(Planes source, Planes target) {
+		return source != null && target != null && source.kind == target.kind &&
+			source.numDimensions == target.numDimensions;
+	}
+
+	/**
+	 * Resamples the rows of {@code target} within {@code block}.
+	 */
+	static void resample(Planes source, DeformationField field, Planes target,
+		Interval block)
+	{
+		int n = block.numDimensions();
+		int yMin = (int) block.min(1);
+		int yMax = (int) block.max(1);
+		int zMin = n > 2 ? (int) block.min(2) : 0;
+		int zMax = n > 2 ? (int) block.max(2) : 0;
+		int step = source.depth > 1 ? 1 : 0;
+		double[] ux = new double[target.width];
+		double[] uy = new double[target.width];
+		double[] uz = new double[target.width];
+		for (int z = zMin; z <= zMax; z++) {
+			for (int y = yMin; y <= yMax; y++) {
+				field.row(y, z, target.width, ux, uy, uz);
+				if (step == 0) Arrays.fill(uz, 0);
+				int o = target.offsets[z] + y * target.width;
+				switch (target.kind) {
+					case UINT8:
+						rowUint8(source, target.bytes[z], o, target.width, step, y, z, ux,
+							uy, uz);
+						break;
+					case UINT16:
+						rowUint16(source, target.shorts[z], o, target.width, step, y, z,
+							ux, uy, uz);
+						break;
+					default:
+						rowFloat(source, target.floats[z], o, target.width, step, y, z, ux,
+							uy, uz);
+				}
+			}
+		}
+	}
+
+	private static void rowUint8(Planes src, byte[] out, int o, int n,
+		int step, int y, int z, double[] ux, double[] uy, double[] uz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++) {
+			double sx = x + ux[x], sy = y + uy[x], sz = z + uz[x];
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			double v;
+			if (inside(src, ix, iy, iz, step)) {
+				byte[] p0 = src.bytes[iz], p1 = src.bytes[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				v = interpolate(p0[i0] & 0xff, p0[i0 + 1] & 0xff, p0[i0 + w] & 0xff,
+					p0[i0 + w + 1] & 0xff, p1[i1] & 0xff, p1[i1 + 1] & 0xff, p1[i1 +
+						w] & 0xff, p1[i1 + w + 1] & 0xff, fx, fy, fz);
+			}
+			else {
+				v = boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+			out[o + x] = (byte) (int) (v + 0.5);
+		}
+	}
+
+	private static void rowUint16(Planes src, short[] out, int o, int n,
+		int step, int y, int z, double[] ux, double[] uy, double[] uz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++) {
+			double sx = x + ux[x], sy = y + uy[x], sz = z + uz[x];
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			double v;
+			if (inside(src, ix, iy, iz, step)) {
+				short[] p0 = src.shorts[iz], p1 = src.shorts[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				v = interpolate(p0[i0] & 0xffff, p0[i0 + 1] & 0xffff, p0[i0 + w] &
+					0xffff, p0[i0 + w + 1] & 0xffff, p1[i1] & 0xffff, p1[i1 + 1] & 0xffff,
+					p1[i1 + w] & 0xffff, p1[i1 + w + 1] & 0xffff, fx, fy, fz);
+			}
+			else {
+				v = boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+			out[o + x] = (short) (int) (v + 0.5);
+		}
+	}
+
+	private static void rowFloat(Planes src, float[] out, int o, int n,
+		int step, int y, int z, double[] ux, double[] uy, double[] uz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++) {
+			double sx = x + ux[x], sy = y + uy[x], sz = z + uz[x];
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			if (inside(src, ix, iy, iz, step)) {
+				float[] p0 = src.floats[iz], p1 = src.floats[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				out[o + x] = (float) interpolate(p0[i0], p0[i0 + 1], p0[i0 + w], p0[i0 +
+					w + 1], p1[i1], p1[i1 + 1], p1[i1 + w], p1[i1 + w + 1], fx, fy, fz);
+			}
+			else {
+				out[o + x] = (float) boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package ch.fmi.transform.resample;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+
+/**
+ * Transforms the z planes of a single-channel volume in place. The output is
+ * computed in slabs of consecutive planes into a small rolling buffer, and
+ * each buffered plane is written back into its original array as soon as no
+ * remaining slab reads the source plane it replaces. The number of buffered
+ * planes is thus bounded by the slab depth plus the z extent of the
+ * transform (the distance between an output plane and the source planes it
+ * is interpolated from), not by the depth of the volume.
+ */
+public class InPlaceResampler {
+
+	private final ResamplingEngine engine;
+	private final int slabDepth;
+	private final List<Object> pool = new ArrayList<>();
+	private int allocated;
+
+	/**
+	 * @param engine the engine resampling each slab
+	 * @param slabDepth the number of z planes computed at once
+	 */
+	public InPlaceResampler(ResamplingEngine engine, int slabDepth) {
+		this.engine = engine;
+		this.slabDepth = Math.max(1, slabDepth);
+	}
+
+	/**
+	 * Replaces the {@code byte[]}, {@code short[]} or {@code float[]}
+	 * {@code planes} of {@code width * height} pixels by their content
+	 * transformed by {@code transform} (in pixel coordinates, 2D or 3D), using
+	 * linear interpolation and zero outside of the volume.
+	 */
+	public void resample(Object[] planes, int width, int height,
+		AffineGet transform)
+	{
+		AffineTransform3D affine = lift(transform);
+		int depth = planes.length;
+		// process the slabs in the direction the source planes move in, which
+		// keeps the buffer small for the usual positive z scaling
+		boolean ascending = affine.inverse().get(2, 2) >= 0;
+		int count = (depth + slabDepth - 1) / slabDepth;
+		int[][] slabs = new int[count][];
+		int[][] ranges = new int[count][];
+		for (int i = 0; i < count; i++) {
+			int s = ascending ? i : count - 1 - i;
+			int z0 = s * slabDepth, z1 = Math.min(depth, z0 + slabDepth) - 1;
+			slabs[i] = new int[] { z0, z1 };
+			ranges[i] = sourceRange(affine, width, height, depth, z0, z1);
+		}
+		// the planes read by the slabs from i on are within needed[i]
+		int[][] needed = new int[count + 1][];
+		needed[count] = new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE };
+		for (int i = count - 1; i >= 0; i--) {
+			needed[i] = ranges[i][0] > ranges[i][1] ? needed[i + 1] : new int[] {
+				Math.min(ranges[i][0], needed[i + 1][0]), Math.max(ranges[i][1],
+					needed[i + 1][1]) };
+		}
+
+		Deque<Object[]> pending = new ArrayDeque<>();
+		for (int i = 0; i < count; i++) {
+			int z0 = slabs[i][0], z1 = slabs[i][1];
+			Object[] target = new Object[z1 - z0 + 1];
+			for (int z = z0; z <= z1; z++) {
+				target[z - z0] = buffer(planes[z]);
+			}
+			int[] range = ranges[i];
+			if (range[0] > range[1]) {
+				for (Object plane : target) {
+					clear(plane);
+				}
+			}
+			else {
+				// pixel coordinates relative to the first source and target plane
+				AffineTransform3D local = affine.copy();
+				local.concatenate(new Translation3D(0, 0, range[0]));
+				local.preConcatenate(new Translation3D(0, 0, -z0));
+				engine.resample(Planes.wrap(width, height, Arrays.copyOfRange(planes,
+					range[0], range[1] + 1)), local, Planes.wrap(width, height, target));
+			}
+			for (int z = z0; z <= z1; z++) {
+				pending.add(new Object[] { z, target[z - z0] });
+			}
+			// write back the planes no remaining slab reads from
+			for (Iterator<Object[]> it = pending.iterator(); it.hasNext();) {
+				Object[] entry = it.next();
+				int z = (Integer) entry[0];
+				if (z < needed[i + 1][0] || z > needed[i + 1][1]) {
+					writeBack(entry[1], planes[z]);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of plane buffers allocated so far, which are reused by
+	 * subsequent calls for planes of the same type and size.
+	 */
+	public int allocatedPlanes() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the (clamped) range of source planes needed to interpolate the
+	 * target planes {@code z0} to {@code z1} of a volume of {@code depth}
+	 * planes, which is empty (with its minimum larger than its maximum) if
+	 * the target planes only see the outside of the volume.
+	 */
+	static int[] sourceRange(AffineGet transform, int width, int height,
+		int depth, int z0, int z1)
+	{
+		AffineGet inverse = transform.inverse();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double[] corner = new double[3];
+		double[] sourceCorner = new double[3];
+		for (int i = 0; i < 8; i++) {
+			corner[0] = (i & 1) == 0 ? 0 : width - 1;
+			corner[1] = (i & 2) == 0 ? 0 : height - 1;
+			corner[2] = (i & 4) == 0 ? z0 : z1;
+			inverse.apply(corner, sourceCorner);
+			min = Math.min(min, sourceCorner[2]);
+			max = Math.max(max, sourceCorner[2]);
+		}
+		return new int[] { (int) Math.max(0, Math.floor(min)), (int) Math.min(
+			depth - 1, Math.floor(max) + 1) };
+	}
+
+	/**
+	 * Returns {@code transform} as a 3D transform, leaving z unchanged for 2D
+	 * transforms.
+	 */
+	private static AffineTransform3D lift(AffineGet transform) {
+		int n = transform.numDimensions();
+		if (n != 2 && n != 3) {
+			throw new IllegalArgumentException(
+				"Cannot handle number of dimensions: " + n);
+		}
+		AffineTransform3D affine = new AffineTransform3D();
+		if (n == 3) {
+			affine.set(transform.getRowPackedCopy());
+		}
+		else {
+			affine.set(transform.get(0, 0), transform.get(0, 1), 0, transform.get(0,
+				2), transform.get(1, 0), transform.get(1, 1), 0, transform.get(1, 2), 0,
+				0, 1, 0);
+		}
+		return affine;
+	}
+
+	/**
+	 * Takes a buffer of the type and size of {@code plane} from the pool, or
+	 * allocates one.
+	 */
+	private Object buffer(Object plane) {
+		for (Iterator<Object> it = pool.iterator(); it.hasNext();) {
+			Object buffer = it.next();
+			if (buffer.getClass() == plane.getClass() && Array.getLength(buffer) == Array
+				.getLength(plane))
+			{
+				it.remove();
+				return buffer;
+			}
+		}
+		allocated++;
+		if (plane instanceof byte[]) return new byte[((byte[]) plane).length];
+		if (plane instanceof short[]) return new short[((short[]) plane).length];
+		if (plane instanceof float[]) return new float[((float[]) plane).length];
+		throw new IllegalArgumentException("Unsupported plane type: " + plane
+			.getClass());
+	}
+
+	private void writeBack(Object buffer, Object plane) {
+		System.arraycopy(buffer, 0, plane, 0, Array.getLength(plane));
+		pool.add(buffer);
+	}
+
+	private static void clear(Object plane) {
+		if (plane instanceof byte[]) Arrays.fill((byte[]) plane, (byte) 0);
+		else if (plane instanceof short[]) Arrays.fill((short[]) plane, (short) 0);
+		else Arrays.fill((float[]) plane, 0f);
+	}
+}
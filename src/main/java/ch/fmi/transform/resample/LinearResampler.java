@@ -0,0 +1,213 @@
+package ch.fmi.transform.resample;
+
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineGet;
+
+/**
+ * N-linear affine resampling working directly on {@link Planes}. Along each
+ * target row the source position advances by the constant first column of
+ * the inverse matrix, so only the row start is computed with the full
+ * matrix. Values are zero outside of the source, and are rounded to the
+ * nearest integer for integer types. Transforms mapping each plane onto a
+ * plane (e.g. 2D transforms applied to a stack) are resampled plane-wise with
+ * bilinear interpolation.
+ */
+final class LinearResampler {
+
+	private LinearResampler() {
+		// avoid instantiation of utility class
+	}
+
+	static boolean supports(Planes source, AffineGet transform, Planes target) {
+		return source != null && target != null && source.kind == target.kind &&
+			transform.numDimensions() == source.numDimensions &&
+			source.numDimensions == target.numDimensions;
+	}
+
+	/**
+	 * Returns the row-packed 3x4 matrix mapping target to source coordinates,
+	 * for a 2D or 3D {@code transform} mapping source to target.
+	 */
+	static double[] inverseMatrix(AffineGet transform) {
+		AffineGet inverse = transform.inverse();
+		int n = inverse.numDimensions();
+		double[] m = new double[12];
+		for (int r = 0; r < n; r++) {
+			for (int c = 0; c < n; c++) {
+				m[r * 4 + c] = inverse.get(r, c);
+			}
+			m[r * 4 + 3] = inverse.get(r, n);
+		}
+		return m;
+	}
+
+	/**
+	 * Resamples the rows of {@code target} within {@code block}.
+	 *
+	 * @param m row-packed 3x4 matrix mapping target to source coordinates
+	 */
+	static void resample(Planes source, double[] m, Planes target,
+		Interval block)
+	{
+		int n = block.numDimensions();
+		int yMin = (int) block.min(1);
+		int yMax = (int) block.max(1);
+		int zMin = n > 2 ? (int) block.min(2) : 0;
+		int zMax = n > 2 ? (int) block.max(2) : 0;
+		int step = source.numDimensions > 2 && !isPlanar(m) ? 1 : 0;
+		for (int z = zMin; z <= zMax; z++) {
+			for (int y = yMin; y <= yMax; y++) {
+				double sx = m[1] * y + m[2] * z + m[3];
+				double sy = m[5] * y + m[6] * z + m[7];
+				double sz = m[9] * y + m[10] * z + m[11];
+				int o = target.offsets[z] + y * target.width;
+				switch (target.kind) {
+					case UINT8:
+						rowUint8(source, target.bytes[z], o, target.width, step, sx, sy, sz, m[0],
+							m[4], m[8]);
+						break;
+					case UINT16:
+						rowUint16(source, target.shorts[z], o, target.width, step, sx, sy, sz,
+							m[0], m[4], m[8]);
+						break;
+					default:
+						rowFloat(source, target.floats[z], o, target.width, step, sx, sy, sz,
+							m[0], m[4], m[8]);
+				}
+			}
+		}
+	}
+
+	private static void rowUint8(Planes src, byte[] out, int o, int n,
+		int step, double sx, double sy, double sz, double dx, double dy, double dz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++, sx += dx, sy += dy, sz += dz) {
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			double v;
+			if (inside(src, ix, iy, iz, step)) {
+				byte[] p0 = src.bytes[iz], p1 = src.bytes[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				v = step == 0 ? interpolate(p0[i0] & 0xff, p0[i0 + 1] & 0xff, p0[i0 +
+					w] & 0xff, p0[i0 + w + 1] & 0xff, fx, fy) : interpolate(p0[i0] &
+						0xff, p0[i0 + 1] & 0xff, p0[i0 + w] & 0xff, p0[i0 + w + 1] & 0xff,
+						p1[i1] & 0xff, p1[i1 + 1] & 0xff, p1[i1 + w] & 0xff, p1[i1 + w +
+							1] & 0xff, fx, fy, fz);
+			}
+			else {
+				v = boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+			out[o + x] = (byte) (int) (v + 0.5);
+		}
+	}
+
+	private static void rowUint16(Planes src, short[] out, int o, int n,
+		int step, double sx, double sy, double sz, double dx, double dy, double dz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++, sx += dx, sy += dy, sz += dz) {
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			double v;
+			if (inside(src, ix, iy, iz, step)) {
+				short[] p0 = src.shorts[iz], p1 = src.shorts[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				v = step == 0 ? interpolate(p0[i0] & 0xffff, p0[i0 + 1] & 0xffff,
+					p0[i0 + w] & 0xffff, p0[i0 + w + 1] & 0xffff, fx, fy) : interpolate(
+						p0[i0] & 0xffff, p0[i0 + 1] & 0xffff, p0[i0 + w] & 0xffff, p0[i0 +
+							w + 1] & 0xffff, p1[i1] & 0xffff, p1[i1 + 1] & 0xffff, p1[i1 +
+								w] & 0xffff, p1[i1 + w + 1] & 0xffff, fx, fy, fz);
+			}
+			else {
+				v = boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+			out[o + x] = (short) (int) (v + 0.5);
+		}
+	}
+
+	private static void rowFloat(Planes src, float[] out, int o, int n,
+		int step, double sx, double sy, double sz, double dx, double dy, double dz)
+	{
+		int w = src.width;
+		for (int x = 0; x < n; x++, sx += dx, sy += dy, sz += dz) {
+			int ix = floor(sx), iy = floor(sy), iz = floor(sz);
+			double fx = sx - ix, fy = sy - iy, fz = sz - iz;
+			if (inside(src, ix, iy, iz, step)) {
+				float[] p0 = src.floats[iz], p1 = src.floats[iz + step];
+				int i0 = src.offsets[iz] + iy * w + ix;
+				int i1 = src.offsets[iz + step] + iy * w + ix;
+				out[o + x] = (float) (step == 0 ? interpolate(p0[i0], p0[i0 + 1], p0[i0 +
+					w], p0[i0 + w + 1], fx, fy) : interpolate(p0[i0], p0[i0 + 1], p0[i0 +
+						w], p0[i0 + w + 1], p1[i1], p1[i1 + 1], p1[i1 + w], p1[i1 + w + 1],
+						fx, fy, fz));
+			}
+			else {
+				out[o + x] = (float) boundary(src, ix, iy, iz, fx, fy, fz);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether all neighbors of {@code (ix, iy, iz)} are within the
+	 * source. For 2D sources, {@code step} is zero and both z neighbors refer
+	 * to the same plane.
+	 */
+	static boolean inside(Planes src, int ix, int iy, int iz,
+		int step)
+	{
+		return ix >= 0 && iy >= 0 && iz >= 0 && ix < src.width - 1 &&
+			iy < src.height - 1 && iz + step < src.depth;
+	}
+
+	/**
+	 * Checks whether the target to source matrix {@code m} maps each target
+	 * plane to exactly one source plane.
+	 */
+	static boolean isPlanar(double[] m) {
+		return m[8] == 0 && m[9] == 0 && m[10] == 1 && m[11] == Math.rint(m[11]);
+	}
+
+	static double interpolate(double v00, double v10, double v01,
+		double v11, double fx, double fy)
+	{
+		double v0 = v00 + fx * (v10 - v00);
+		double v1 = v01 + fx * (v11 - v01);
+		return v0 + fy * (v1 - v0);
+	}
+
+	static double interpolate(double v000, double v100, double v010,
+		double v110, double v001, double v101, double v011, double v111,
+		double fx, double fy, double fz)
+	{
+		double v00 = v000 + fx * (v100 - v000);
+		double v10 = v010 + fx * (v110 - v010);
+		double v01 = v001 + fx * (v101 - v001);
+		double v11 = v011 + fx * (v111 - v011);
+		double v0 = v00 + fy * (v10 - v00);
+		double v1 = v01 + fy * (v11 - v01);
+		return v0 + fz * (v1 - v0);
+	}
+
+	static double boundary(Planes src, int ix, int iy, int iz,
+		double fx, double fy, double fz)
+	{
+		double v = 0;
+		for (int c = 0; c < 8; c++) {
+			int dx = c & 1, dy = (c >> 1) & 1, dz = c >> 2;
+			double weight = (dx == 0 ? 1 - fx : fx) * (dy == 0 ? 1 - fy : fy) *
+				(dz == 0 ? 1 - fz : fz);
+			if (weight != 0) {
+				v += weight * src.get(ix + dx, iy + dy, iz + dz);
+			}
+		}
+		return v;
+	}
+
+	static int floor(double v) {
+		int i = (int) v;
+		return v < i ? i - 1 : i;
+	}
+}
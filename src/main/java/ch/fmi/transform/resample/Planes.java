@@ -0,0 +1,216 @@
+package ch.fmi.transform.resample;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Direct access to the primitive arrays backing a 2D or 3D single-channel
+ * image of {@link UnsignedByteType}, {@link UnsignedShortType} or
+ * {@link FloatType} pixels. Each plane {@code z} is stored in
+ * {@code arrays[z]}, starting at {@code offsets[z]}, with x running fastest.
+ */
+public final class Planes {
+
+	public enum Kind {
+		UINT8, UINT16, FLOAT
+	}
+
+	final Kind kind;
+	final int numDimensions;
+	final int width;
+	final int height;
+	final int depth;
+	final byte[][] bytes;
+	final short[][] shorts;
+	final float[][] floats;
+	final int[] offsets;
+
+	private Planes(Kind kind, int numDimensions, int width, int height,
+		Object[] arrays, int[] offsets)
+	{
+		this.kind = kind;
+		this.numDimensions = numDimensions;
+		this.width = width;
+		this.height = height;
+		this.depth = arrays.length;
+		this.offsets = offsets;
+		bytes = kind == Kind.UINT8 ? new byte[depth][] : null;
+		shorts = kind == Kind.UINT16 ? new short[depth][] : null;
+		floats = kind == Kind.FLOAT ? new float[depth][] : null;
+		for (int z = 0; z < depth; z++) {
+			switch (kind) {
+				case UINT8:
+					bytes[z] = (byte[]) arrays[z];
+					break;
+				case UINT16:
+					shorts[z] = (short[]) arrays[z];
+					break;
+				default:
+					floats[z] = (float[]) arrays[z];
+			}
+		}
+	}
+
+	public Kind kind() {
+		return kind;
+	}
+
+	public int numDimensions() {
+		return numDimensions;
+	}
+
+	public long[] dimensions() {
+		return numDimensions == 2 ? new long[] { width, height } : new long[] {
+			width, height, depth };
+	}
+
+	/**
+	 * Wraps a 2D or 3D {@link ArrayImg} or {@link PlanarImg}, or returns
+	 * {@code null} if {@code img} is not backed by a supported storage.
+	 */
+	public static Planes wrap(RandomAccessibleInterval<?> img) {
+		int n = img.numDimensions();
+		if (n < 2 || n > 3) return null;
+		for (int d = 0; d < n; d++) {
+			if (img.min(d) != 0) return null;
+		}
+		int width = (int) img.dimension(0);
+		int height = (int) img.dimension(1);
+		int depth = n == 3 ? (int) img.dimension(2) : 1;
+		Object[] arrays = new Object[depth];
+		int[] offsets = new int[depth];
+		Kind kind;
+		if (img instanceof ArrayImg) {
+			ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) img;
+			kind = kind(arrayImg.firstElement());
+			Object data = arrayImg.update(null);
+			if (kind == null || !(data instanceof ArrayDataAccess)) return null;
+			long planeSize = (long) width * height;
+			for (int z = 0; z < depth; z++) {
+				arrays[z] = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+				offsets[z] = (int) (z * planeSize);
+			}
+		}
+		else if (img instanceof PlanarImg) {
+			PlanarImg<?, ?> planarImg = (PlanarImg<?, ?>) img;
+			kind = kind(planarImg.firstElement());
+			if (kind == null) return null;
+			for (int z = 0; z < depth; z++) {
+				Object plane = planarImg.getPlane(z);
+				if (!(plane instanceof ArrayDataAccess)) return null;
+				arrays[z] = ((ArrayDataAccess<?>) plane).getCurrentStorageArray();
+			}
+		}
+		else {
+			return null;
+		}
+		return new Planes(kind, n, width, height, arrays, offsets);
+	}
+
+	/**
+	 * Wraps the planes of one channel (0-based) of the first frame of an
+	 * {@link ImagePlus}, or returns {@code null} for RGB images and virtual
+	 * stacks.
+	 */
+	public static Planes wrap(ImagePlus imp, int channel) {
+		return wrap(imp, channel, 0);
+	}
+
+	/**
+	 * Wraps the planes of one channel and frame (both 0-based) of an
+	 * {@link ImagePlus}, or returns {@code null} for RGB images and virtual
+	 * stacks.
+	 */
+	public static Planes wrap(ImagePlus imp, int channel, int frame) {
+		ImageStack stack = imp.getStack();
+		if (stack.isVirtual()) return null;
+		Kind kind;
+		switch (imp.getBitDepth()) {
+			case 8:
+				kind = Kind.UINT8;
+				break;
+			case 16:
+				kind = Kind.UINT16;
+				break;
+			case 32:
+				kind = Kind.FLOAT;
+				break;
+			default:
+				return null;
+		}
+		int depth = imp.getNSlices();
+		Object[] arrays = new Object[depth];
+		for (int z = 0; z < depth; z++) {
+			arrays[z] = stack.getPixels(imp.getStackIndex(channel + 1, z + 1, frame +
+				1));
+		}
+		return new Planes(kind, depth > 1 ? 3 : 2, imp.getWidth(), imp
+			.getHeight(), arrays, new int[depth]);
+	}
+
+	/**
+	 * Wraps the given {@code byte[]}, {@code short[]} or {@code float[]}
+	 * planes of {@code width * height} pixels as a 3D image.
+	 *
+	 * @throws IllegalArgumentException for other or mixed array types
+	 */
+	public static Planes wrap(int width, int height, Object... planes) {
+		Kind kind = planes[0] instanceof byte[] ? Kind.UINT8 : //
+			planes[0] instanceof short[] ? Kind.UINT16 : //
+				planes[0] instanceof float[] ? Kind.FLOAT : null;
+		for (Object plane : planes) {
+			if (kind == null || plane.getClass() != planes[0].getClass()) {
+				throw new IllegalArgumentException("Unsupported plane type: " + plane
+					.getClass());
+			}
+		}
+		return new Planes(kind, 3, width, height, planes, new int[planes.length]);
+	}
+
+	private static Kind kind(Object type) {
+		if (type instanceof UnsignedByteType) return Kind.UINT8;
+		if (type instanceof UnsignedShortType) return Kind.UINT16;
+		if (type instanceof FloatType) return Kind.FLOAT;
+		return null;
+	}
+
+	/**
+	 * Returns the primitive array holding plane {@code z}.
+	 */
+	Object array(int z) {
+		switch (kind) {
+			case UINT8:
+				return bytes[z];
+			case UINT16:
+				return shorts[z];
+			default:
+				return floats[z];
+		}
+	}
+
+	/**
+	 * Returns the pixel value at {@code (x, y, z)}, or zero outside of the
+	 * image bounds.
+	 */
+	double get(int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= depth)
+			return 0;
+		int i = offsets[z] + y * width + x;
+		switch (kind) {
+			case UINT8:
+				return bytes[z][i] & 0xff;
+			case UINT16:
+				return shorts[z][i] & 0xffff;
+			default:
+				return floats[z][i];
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package ch.fmi.transform.resample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import ch.fmi.transform.DeformationField;
+
+/**
+ * Resamples images through an affine transformation into a pre-allocated
+ * target image. The target is split into slabs along its last dimension, and
+ * all slabs are processed in parallel on the given {@link ExecutorService}.
+ */
+public class ResamplingEngine {
+
+	/**
+	 * Receives the number of completed and total blocks of a running operation.
+	 */
+	public interface ProgressListener {
+
+		void progress(int completed, int total);
+	}
+
+	private final ExecutorService executor;
+	private final int numBlocks;
+	private ProgressListener progressListener;
+
+	/**
+	 * @param executor the executor running the individual blocks
+	 * @param numBlocks the (maximum) number of blocks the target is split into
+	 */
+	public ResamplingEngine(ExecutorService executor, int numBlocks) {
+		this.executor = executor;
+		this.numBlocks = Math.max(1, numBlocks);
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		progressListener = listener;
+	}
+
+	/**
+	 * Fills {@code target} with {@code source} transformed by {@code transform},
+	 * using n-linear interpolation and zero outside of the source interval.
+	 * Images backed by primitive arrays of a supported type are resampled with
+	 * {@link #resample(Planes, AffineGet, Planes)}, and integer translations
+	 * are copied from a translated view.
+	 */
+	public <T extends RealType<T>> void resample(
+		RandomAccessibleInterval<T> source, AffineGet transform,
+		RandomAccessibleInterval<T> target)
+	{
+		Planes sourcePlanes = Planes.wrap(source);
+		Planes targetPlanes = Planes.wrap(target);
+		if (LinearResampler.supports(sourcePlanes, transform, targetPlanes)) {
+			resample(sourcePlanes, transform, targetPlanes);
+			return;
+		}
+		double[] translation = TranslationResampler.translation(transform);
+		if (translation != null && TranslationResampler.isInteger(translation)) {
+			long[] shift = new long[translation.length];
+			for (int d = 0; d < shift.length; d++) {
+				shift[d] = Math.round(translation[d]);
+			}
+			copy(Views.translate(Views.extendZero(source), shift), target);
+			return;
+		}
+		RandomAccessible<T> transformed = RealViews.affine(Views.interpolate(Views
+			.extendZero(source), new NLinearInterpolatorFactory<T>()), transform);
+		run(target, block -> copyBlock(transformed, Views.interval(target, block)));
+	}
+
+	/**
+	 * Fills {@code target} with {@code source} transformed by {@code transform},
+	 * reading and writing the backing arrays directly. Pure translations are
+	 * resampled with a {@link TranslationResampler}, all other transforms with
+	 * a {@link LinearResampler}.
+	 *
+	 * @throws IllegalArgumentException if the planes are of different kind or
+	 *           dimensionality than each other or {@code transform}
+	 */
+	public void resample(Planes source, AffineGet transform, Planes target) {
+		if (!LinearResampler.supports(source, transform, target)) {
+			throw new IllegalArgumentException(
+				"Incompatible planes for transform: " + transform);
+		}
+		Interval interval = new FinalInterval(target.dimensions());
+		double[] translation = TranslationResampler.translation(transform);
+		if (translation == null) {
+			double[] matrix = LinearResampler.inverseMatrix(transform);
+			run(interval, block -> LinearResampler.resample(source, matrix, target,
+				block));
+		}
+		else if (TranslationResampler.isInteger(translation)) {
+			run(interval, block -> TranslationResampler.shift(source, translation,
+				target, block));
+		}
+		else {
+			run(interval, block -> TranslationResampler.linearShift(source,
+				translation, target, block));
+		}
+	}
+
+	/**
+	 * Returns whether {@code transform} is the identity, so that resampling
+	 * through it can be skipped where the target is the source itself.
+	 */
+	public static boolean isIdentity(AffineGet transform) {
+		double[] translation = TranslationResampler.translation(transform);
+		return translation != null && TranslationResampler.isZero(translation);
+	}
+
+	/**
+	 * Resamples {@code source} into {@code target} through {@code field}, which
+	 * maps target to source pixel coordinates.
+	 */
+	public void resample(Planes source, DeformationField field, Planes target) {
+		if (!DeformationResampler.supports(source, target)) {
+			throw new IllegalArgumentException(
+				"Incompatible planes for deformation field");
+		}
+		run(new FinalInterval(target.dimensions()), block -> DeformationResampler
+			.resample(source, field, target, block));
+	}
+
+	/**
+	 * Copies {@code source} into {@code target} over the interval of
+	 * {@code target}.
+	 */
+	public <T extends Type<T>> void copy(RandomAccessible<T> source,
+		RandomAccessibleInterval<T> target)
+	{
+		run(target, block -> copyBlock(source, Views.interval(target, block)));
+	}
+
+	private static <T extends Type<T>> void copyBlock(RandomAccessible<T> source,
+		RandomAccessibleInterval<T> block)
+	{
+		Cursor<T> cursor = Views.flatIterable(block).localizingCursor();
+		RandomAccess<T> access = source.randomAccess(block);
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			cursor.get().set(access.get());
+		}
+	}
+
+	private void run(Interval target, BlockTask task) {
+		List<Interval> blocks = slabs(target, numBlocks);
+		AtomicInteger completed = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>(blocks.size());
+		for (Interval block : blocks) {
+			futures.add(executor.submit(() -> {
+				task.process(block);
+				if (progressListener != null) {
+					progressListener.progress(completed.incrementAndGet(), blocks.size());
+				}
+			}));
+		}
+		await(futures);
+	}
+
+	static void await(List<Future<?>> futures) {
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException exc) {
+			futures.forEach(f -> f.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Resampling was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			futures.forEach(f -> f.cancel(true));
+			throw new RuntimeException("Resampling failed", exc.getCause());
+		}
+	}
+
+	/**
+	 * Splits {@code interval} into at most {@code n} slabs along its last
+	 * dimension.
+	 */
+	static List<Interval> slabs(Interval interval, int n) {
+		int d = interval.numDimensions() - 1;
+		long size = interval.dimension(d);
+		int count = (int) Math.min(n, size);
+		List<Interval> slabs = new ArrayList<>(count);
+		long[] min = new long[interval.numDimensions()];
+		long[] max = new long[interval.numDimensions()];
+		interval.min(min);
+		interval.max(max);
+		for (int i = 0; i < count; i++) {
+			min[d] = interval.min(d) + i * size / count;
+			max[d] = interval.min(d) + (i + 1) * size / count - 1;
+			slabs.add(new FinalInterval(min, max));
+		}
+		return slabs;
+	}
+
+	private interface BlockTask {
+
+		void process(Interval block);
+	}
+}
@@ -0,0 +1,185 @@
+package ch.fmi.transform.resample;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A {@link VirtualStack} presenting the channels of a (typically virtual)
+ * hyperstack transformed by per-channel affine transformations in pixel
+ * coordinates. Output planes are computed in slabs of consecutive z planes:
+ * for each slab only the source planes the transform can reach are loaded,
+ * so memory use is bounded by the slab size rather than the stack size.
+ * Channels without a transform are passed through without copying.
+ * <p>
+ * Planes are expected to be requested in stack order, as when saving the
+ * stack with {@link ij.io.FileSaver}; random access works but may recompute
+ * slabs.
+ * </p>
+ */
+public class TransformedVirtualStack extends VirtualStack {
+
+	private final ImagePlus source;
+	private final ImageStack sourceStack;
+	private final AffineGet[] transforms;
+	private final int slabDepth;
+	private final ResamplingEngine engine;
+	private final int width;
+	private final int height;
+	private final int nChannels;
+	private final int nSlices;
+
+	private Map<Integer, Object> sourcePlanes = new HashMap<>();
+	private final Object[][] slab;
+	private int slabFrame = -1;
+	private int slabStart = -1;
+
+	/**
+	 * @param source the input hyperstack
+	 * @param transforms one 3D transform (in pixel coordinates) per channel, or
+	 *          {@code null} for channels to be left untouched
+	 * @param slabDepth the number of z planes computed at once
+	 * @param engine the engine resampling each slab
+	 */
+	public TransformedVirtualStack(ImagePlus source, AffineGet[] transforms,
+		int slabDepth, ResamplingEngine engine)
+	{
+		super(source.getWidth(), source.getHeight(), null, null);
+		if (source.getBitDepth() == 24) {
+			throw new IllegalArgumentException("RGB images are not supported.");
+		}
+		this.source = source;
+		this.sourceStack = source.getStack();
+		this.transforms = transforms;
+		this.slabDepth = Math.max(1, slabDepth);
+		this.engine = engine;
+		this.width = source.getWidth();
+		this.height = source.getHeight();
+		this.nChannels = source.getNChannels();
+		this.nSlices = source.getNSlices();
+		this.slab = new Object[nChannels][];
+		setBitDepth(source.getBitDepth());
+	}
+
+	@Override
+	public synchronized ImageProcessor getProcessor(int n) {
+		int[] czt = source.convertIndexToPosition(n);
+		int c = czt[0] - 1, z = czt[1] - 1, t = czt[2] - 1;
+		if (c >= transforms.length || transforms[c] == null) {
+			return sourceStack.getProcessor(n);
+		}
+		if (t != slabFrame || z < slabStart || z >= slabStart + slabDepth) {
+			computeSlab(t, z - z % slabDepth);
+		}
+		return processor(slab[c][z - slabStart]);
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public int getSize() {
+		return sourceStack.getSize();
+	}
+
+	@Override
+	public int size() {
+		return getSize();
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return sourceStack.getSliceLabel(n);
+	}
+
+	private void computeSlab(int t, int z0) {
+		int z1 = Math.min(nSlices, z0 + slabDepth) - 1;
+		Map<Integer, Object> retained = new HashMap<>();
+		for (int c = 0; c < nChannels && c < transforms.length; c++) {
+			if (transforms[c] == null) continue;
+			Object[] target = targetPlanes(c, z1 - z0 + 1);
+			int[] range = sourceRange(transforms[c], z0, z1);
+			if (range[0] > range[1]) {
+				for (Object plane : target) {
+					clear(plane);
+				}
+				continue;
+			}
+			Object[] planes = new Object[range[1] - range[0] + 1];
+			for (int z = range[0]; z <= range[1]; z++) {
+				int index = source.getStackIndex(c + 1, z + 1, t + 1);
+				Object plane = sourcePlanes.get(index);
+				if (plane == null) plane = sourceStack.getPixels(index);
+				retained.put(index, plane);
+				planes[z - range[0]] = plane;
+			}
+			// pixel coordinates relative to the first source and target plane
+			AffineTransform3D local = new AffineTransform3D();
+			local.set(transforms[c].getRowPackedCopy());
+			local.concatenate(new Translation3D(0, 0, range[0]));
+			local.preConcatenate(new Translation3D(0, 0, -z0));
+			engine.resample(Planes.wrap(width, height, planes), local, Planes.wrap(
+				width, height, target));
+		}
+		sourcePlanes = retained;
+		slabFrame = t;
+		slabStart = z0;
+	}
+
+	/**
+	 * Returns the (clamped) range of source planes needed to interpolate the
+	 * target planes {@code z0} to {@code z1}.
+	 */
+	private int[] sourceRange(AffineGet transform, int z0, int z1) {
+		return InPlaceResampler.sourceRange(transform, width, height, nSlices, z0,
+			z1);
+	}
+
+	private Object[] targetPlanes(int c, int depth) {
+		if (slab[c] == null) {
+			slab[c] = new Object[slabDepth];
+			for (int z = 0; z < slabDepth; z++) {
+				slab[c][z] = processor(null).getPixels();
+			}
+		}
+		return Arrays.copyOf(slab[c], depth);
+	}
+
+	private static void clear(Object plane) {
+		if (plane instanceof byte[]) Arrays.fill((byte[]) plane, (byte) 0);
+		else if (plane instanceof short[]) Arrays.fill((short[]) plane, (short) 0);
+		else Arrays.fill((float[]) plane, 0f);
+	}
+
+	/**
+	 * Creates a processor for {@code pixels}, or for new pixels if
+	 * {@code null}.
+	 */
+	private ImageProcessor processor(Object pixels) {
+		switch (getBitDepth()) {
+			case 8:
+				return pixels == null ? new ByteProcessor(width, height)
+					: new ByteProcessor(width, height, (byte[]) pixels);
+			case 16:
+				return pixels == null ? new ShortProcessor(width, height)
+					: new ShortProcessor(width, height, (short[]) pixels, null);
+			default:
+				return pixels == null ? new FloatProcessor(width, height)
+					: new FloatProcessor(width, height, (float[]) pixels);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package ch.fmi.transform.resample;
+
+import java.util.Arrays;
+
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineGet;
+
+/**
+ * Resampling of {@link Planes} through pure translations. Integer shifts are
+ * plain row copies; sub-pixel shifts are computed row by row with three
+ * separable linear passes (z, y, then x) using constant weights, which is
+ * equivalent to n-linear interpolation for a translation.
+ */
+final class TranslationResampler {
+
+	private static final double EPSILON = 1e-10;
+	private static final double INTEGER_EPSILON = 1e-6;
+
+	private TranslationResampler() {
+		// avoid instantiation of utility class
+	}
+
+	/**
+	 * Returns the translation vector of {@code transform}, or {@code null} if
+	 * it is not a pure translation.
+	 */
+	static double[] translation(AffineGet transform) {
+		int n = transform.numDimensions();
+		double[] t = new double[n];
+		for (int r = 0; r < n; r++) {
+			for (int c = 0; c < n; c++) {
+				if (Math.abs(transform.get(r, c) - (r == c ? 1 : 0)) > EPSILON)
+					return null;
+			}
+			t[r] = transform.get(r, n);
+		}
+		return t;
+	}
+
+	static boolean isInteger(double[] translation) {
+		for (double t : translation) {
+			if (Math.abs(t - Math.round(t)) > INTEGER_EPSILON) return false;
+		}
+		return true;
+	}
+
+	static boolean isZero(double[] translation) {
+		for (double t : translation) {
+			if (Math.abs(t) > INTEGER_EPSILON) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the rows of {@code source} shifted by the integer
+	 * {@code translation} into the rows of {@code target} within
+	 * {@code block}, filling uncovered pixels with zero.
+	 */
+	static void shift(Planes source, double[] translation, Planes target,
+		Interval block)
+	{
+		int tx = (int) Math.round(translation[0]);
+		int ty = (int) Math.round(translation[1]);
+		int tz = translation.length > 2 ? (int) Math.round(translation[2]) : 0;
+		int xFrom = Math.max(0, tx);
+		int xTo = Math.min(target.width, source.width + tx);
+		forEachRow(block, (y, z) -> {
+			int sy = y - ty, sz = z - tz;
+			int o = target.offsets[z] + y * target.width;
+			if (xFrom >= xTo || sy < 0 || sz < 0 || sy >= source.height ||
+				sz >= source.depth)
+			{
+				fillZero(target, z, o, o + target.width);
+				return;
+			}
+			System.arraycopy(source.array(sz), source.offsets[sz] + sy *
+				source.width + xFrom - tx, target.array(z), o + xFrom, xTo - xFrom);
+			fillZero(target, z, o, o + xFrom);
+			fillZero(target, z, o + xTo, o + target.width);
+		});
+	}
+
+	/**
+	 * Resamples the rows of {@code target} within {@code block} from
+	 * {@code source} shifted by the sub-pixel {@code translation}.
+	 */
+	static void linearShift(Planes source, double[] translation, Planes target,
+		Interval block)
+	{
+		// source position = target position - translation
+		double sx = -translation[0];
+		double sy0 = -translation[1];
+		double sz0 = translation.length > 2 ? -translation[2] : 0;
+		int ix = (int) Math.floor(sx);
+		double fx = sx - ix;
+		int iyOffset = (int) Math.floor(sy0);
+		double fy = sy0 - iyOffset;
+		int izOffset = (int) Math.floor(sz0);
+		double fz = sz0 - izOffset;
+
+		double[] a = new double[source.width];
+		double[] b = new double[source.width];
+		double[] tmp = new double[source.width];
+		double[] out = new double[target.width];
+		forEachRow(block, (y, z) -> {
+			int iy = y + iyOffset, iz = z + izOffset;
+			// z pass
+			zPass(source, iy, iz, fz, a, tmp);
+			if (fy != 0) {
+				zPass(source, iy + 1, iz, fz, b, tmp);
+				// y pass
+				for (int x = 0; x < a.length; x++) {
+					a[x] += fy * (b[x] - a[x]);
+				}
+			}
+			// x pass
+			for (int x = 0; x < out.length; x++) {
+				int i = x + ix;
+				double v0 = i >= 0 && i < a.length ? a[i] : 0;
+				double v1 = i + 1 >= 0 && i + 1 < a.length ? a[i + 1] : 0;
+				out[x] = v0 + fx * (v1 - v0);
+			}
+			writeRow(target, y, z, out);
+		});
+	}
+
+	private static void zPass(Planes source, int y, int z, double fz,
+		double[] row, double[] tmp)
+	{
+		readRow(source, y, z, row);
+		if (fz != 0) {
+			readRow(source, y, z + 1, tmp);
+			for (int x = 0; x < row.length; x++) {
+				row[x] += fz * (tmp[x] - row[x]);
+			}
+		}
+	}
+
+	private static void readRow(Planes p, int y, int z, double[] row) {
+		if (y < 0 || z < 0 || y >= p.height || z >= p.depth) {
+			Arrays.fill(row, 0);
+			return;
+		}
+		int o = p.offsets[z] + y * p.width;
+		switch (p.kind) {
+			case UINT8:
+				for (int x = 0; x < row.length; x++)
+					row[x] = p.bytes[z][o + x] & 0xff;
+				break;
+			case UINT16:
+				for (int x = 0; x < row.length; x++)
+					row[x] = p.shorts[z][o + x] & 0xffff;
+				break;
+			default:
+				for (int x = 0; x < row.length; x++)
+					row[x] = p.floats[z][o + x];
+		}
+	}
+
+	private static void writeRow(Planes p, int y, int z, double[] row) {
+		int o = p.offsets[z] + y * p.width;
+		switch (p.kind) {
+			case UINT8:
+				for (int x = 0; x < row.length; x++)
+					p.bytes[z][o + x] = (byte) (int) (row[x] + 0.5);
+				break;
+			case UINT16:
+				for (int x = 0; x < row.length; x++)
+					p.shorts[z][o + x] = (short) (int) (row[x] + 0.5);
+				break;
+			default:
+				for (int x = 0; x < row.length; x++)
+					p.floats[z][o + x] = (float) row[x];
+		}
+	}
+
+	private static void fillZero(Planes p, int z, int from, int to) {
+		if (from >= to) return;
+		switch (p.kind) {
+			case UINT8:
+				Arrays.fill(p.bytes[z], from, to, (byte) 0);
+				break;
+			case UINT16:
+				Arrays.fill(p.shorts[z], from, to, (short) 0);
+				break;
+			default:
+				Arrays.fill(p.floats[z], from, to, 0f);
+		}
+	}
+
+	private static void forEachRow(Interval block, RowConsumer consumer) {
+		int n = block.numDimensions();
+		int zMin = n > 2 ? (int) block.min(2) : 0;
+		int zMax = n > 2 ? (int) block.max(2) : 0;
+		for (int z = zMin; z <= zMax; z++) {
+			for (int y = (int) block.min(1); y <= block.max(1); y++) {
+				consumer.accept(y, z);
+			}
+		}
+	}
+
+	private interface RowConsumer {
+
+		void accept(int y, int z);
+	}
+}
@@ -0,0 +1,340 @@
+package ch.fmi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.realtransform.AffineGet;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+/**
+ * Renders synthetic multi-channel bead images with known channel
+ * displacements, as ground truth for bead detection, alignment and channel
+ * transformation. Beads are Gaussian spots (in calibrated units) on a
+ * constant background, with optional Poisson (shot) and Gaussian (read)
+ * noise, rendered into 16-bit planes.
+ * <p>
+ * Each plane is split into bands of rows that are rendered in parallel, and
+ * only the beads close enough to a plane are visited for it. The noise is
+ * seeded per row, so the result only depends on the seed, not on the number
+ * of tasks, and drawn from unsynchronized generators.
+ * </p>
+ */
+public class BeadPhantom {
+
+	/** Gaussian spots are rendered up to this many standard deviations. */
+	private static final double CUTOFF = 3.0;
+
+	private final ExecutorService executor;
+	private final int numTasks;
+
+	private int width = 256;
+	private int height = 256;
+	private int depth = 1;
+	private double[] spacing = { 1, 1, 1 };
+	private double lateralSigma = 1.0;
+	private double axialSigma = 2.0;
+	private double intensity = 1000;
+	private double background = 100;
+	private boolean poissonNoise = true;
+	private double readNoise = 0;
+	private long seed = 0;
+
+	/**
+	 * @param executor the executor rendering the bands
+	 * @param numTasks the number of tasks each channel is split into
+	 */
+	public BeadPhantom(ExecutorService executor, int numTasks) {
+		this.executor = executor;
+		this.numTasks = Math.max(1, numTasks);
+	}
+
+	/**
+	 * Sets the image size in pixels, with a {@code depth} of 1 for 2D images.
+	 */
+	public void setDimensions(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * Sets the pixel size (x, y, z) in calibrated units.
+	 */
+	public void setSpacing(double... spacing) {
+		this.spacing = new double[] { spacing[0], spacing[1], spacing.length > 2
+			? spacing[2] : 1 };
+	}
+
+	/**
+	 * Sets the standard deviations of the Gaussian spots in calibrated units.
+	 */
+	public void setSigma(double lateral, double axial) {
+		this.lateralSigma = lateral;
+		this.axialSigma = axial;
+	}
+
+	/**
+	 * Sets the mean peak intensity of the beads above background.
+	 */
+	public void setIntensity(double intensity) {
+		this.intensity = intensity;
+	}
+
+	public void setBackground(double background) {
+		this.background = background;
+	}
+
+	public void setPoissonNoise(boolean poissonNoise) {
+		this.poissonNoise = poissonNoise;
+	}
+
+	/**
+	 * Sets the standard deviation of Gaussian noise added to each pixel.
+	 */
+	public void setReadNoise(double readNoise) {
+		this.readNoise = readNoise;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns {@code n} beads uniformly distributed in the image, in calibrated
+	 * units, with their peak intensity (between 0.75 and 1.25 times the mean
+	 * intensity) as quality. In 2D, all beads are at z = 0.
+	 */
+	public PointCloud beads(int n) {
+		Random random = new Random(seed);
+		PointCloud beads = new PointCloud(n);
+		for (int i = 0; i < n; i++) {
+			double x = random.nextDouble() * (width - 1) * spacing[0];
+			double y = random.nextDouble() * (height - 1) * spacing[1];
+			double z = depth > 1 ? random.nextDouble() * (depth - 1) * spacing[2] : 0;
+			beads.add(x, y, z, intensity * (0.75 + 0.5 * random.nextDouble()));
+		}
+		return beads;
+	}
+
+	/**
+	 * Returns {@code beads} moved by {@code displacement}. A 2D displacement
+	 * moves x and y only.
+	 */
+	public static PointCloud transform(PointCloud beads, AffineGet displacement) {
+		int n = displacement.numDimensions();
+		PointCloud moved = new PointCloud(beads.size());
+		double[] position = new double[3];
+		double[] source = new double[n];
+		double[] target = new double[n];
+		for (int i = 0; i < beads.size(); i++) {
+			beads.localize(i, position);
+			System.arraycopy(position, 0, source, 0, n);
+			displacement.apply(source, target);
+			System.arraycopy(target, 0, position, 0, n);
+			moved.add(position[0], position[1], position[2], beads.quality(i));
+		}
+		return moved;
+	}
+
+	/**
+	 * Renders one channel per displacement, with the beads of channel
+	 * {@code c} at {@code displacements.get(c)} applied to {@code beads}
+	 * ({@code null} for no displacement). The result is a calibrated
+	 * (composite) hyperstack.
+	 */
+	public ImagePlus render(PointCloud beads, List<? extends AffineGet> displacements) {
+		int numChannels = displacements.size();
+		short[][][] channels = new short[numChannels][][];
+		for (int c = 0; c < numChannels; c++) {
+			AffineGet displacement = displacements.get(c);
+			channels[c] = render(displacement == null ? beads : transform(beads,
+				displacement), c);
+		}
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			for (int c = 0; c < numChannels; c++) {
+				stack.addSlice(new ShortProcessor(width, height, channels[c][z], null));
+			}
+		}
+		ImagePlus imp = new ImagePlus("Bead phantom", stack);
+		imp.setDimensions(numChannels, depth, 1);
+		Calibration calibration = imp.getCalibration();
+		calibration.pixelWidth = spacing[0];
+		calibration.pixelHeight = spacing[1];
+		calibration.pixelDepth = spacing[2];
+		calibration.setUnit("micron");
+		if (numChannels > 1) {
+			imp = new CompositeImage(imp, CompositeImage.COMPOSITE);
+		}
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	/**
+	 * Renders {@code beads} (in calibrated units, with their peak intensity as
+	 * quality) into {@code depth} planes of 16-bit pixels. The channel index
+	 * only seeds the noise.
+	 */
+	public short[][] render(PointCloud beads, int channel) {
+		double sx = lateralSigma / spacing[0];
+		double sy = lateralSigma / spacing[1];
+		double sz = axialSigma / spacing[2];
+		int rx = (int) Math.ceil(CUTOFF * sx);
+		int ry = (int) Math.ceil(CUTOFF * sy);
+		int rz = depth > 1 ? (int) Math.ceil(CUTOFF * sz) : 0;
+
+		// pixel positions of the beads, and the beads close to each plane
+		int n = beads.size();
+		double[] px = new double[n], py = new double[n], pz = new double[n];
+		int[] start = new int[depth + 1];
+		for (int i = 0; i < n; i++) {
+			px[i] = beads.x(i) / spacing[0];
+			py[i] = beads.y(i) / spacing[1];
+			pz[i] = depth > 1 ? beads.z(i) / spacing[2] : 0;
+			int z = (int) Math.round(pz[i]);
+			for (int p = Math.max(0, z - rz); p <= Math.min(depth - 1, z + rz); p++) {
+				start[p + 1]++;
+			}
+		}
+		for (int p = 0; p < depth; p++) {
+			start[p + 1] += start[p];
+		}
+		int[] next = start.clone();
+		int[] planeBeads = new int[start[depth]];
+		for (int i = 0; i < n; i++) {
+			int z = (int) Math.round(pz[i]);
+			for (int p = Math.max(0, z - rz); p <= Math.min(depth - 1, z + rz); p++) {
+				planeBeads[next[p]++] = i;
+			}
+		}
+
+		short[][] planes = new short[depth][width * height];
+		int bands = Math.min(height, (numTasks + depth - 1) / depth);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int task = 0; task < depth * bands; task++) {
+			int z = task / bands;
+			int y0 = (int) ((long) (task % bands) * height / bands);
+			int y1 = (int) ((long) (task % bands + 1) * height / bands);
+			futures.add(executor.submit(() -> {
+				float[] sum = new float[(y1 - y0) * width];
+				double[] wx = new double[2 * rx + 1];
+				for (int k = start[z]; k < start[z + 1]; k++) {
+					int i = planeBeads[k];
+					int cy = (int) Math.round(py[i]);
+					int yMin = Math.max(y0, cy - ry), yMax = Math.min(y1 - 1, cy + ry);
+					if (yMin > yMax) continue;
+					int cx = (int) Math.round(px[i]);
+					int xMin = Math.max(0, cx - rx), xMax = Math.min(width - 1, cx + rx);
+					if (xMin > xMax) continue;
+					double dz = z - pz[i];
+					double peak = beads.quality(i) * (depth > 1 ? Math.exp(-dz * dz /
+						(2 * sz * sz)) : 1);
+					for (int x = xMin; x <= xMax; x++) {
+						double dx = x - px[i];
+						wx[x - xMin] = Math.exp(-dx * dx / (2 * sx * sx));
+					}
+					for (int y = yMin; y <= yMax; y++) {
+						double dy = y - py[i];
+						double wy = peak * Math.exp(-dy * dy / (2 * sy * sy));
+						int o = (y - y0) * width;
+						for (int x = xMin; x <= xMax; x++) {
+							sum[o + x] += wy * wx[x - xMin];
+						}
+					}
+				}
+				short[] plane = planes[z];
+				for (int y = y0; y < y1; y++) {
+					long row = ((long) channel * depth + z) * height + y;
+					Noise random = new Noise(seed + 0x9e3779b97f4a7c15L * (row + 1));
+					int o = (y - y0) * width;
+					for (int x = 0; x < width; x++) {
+						double v = background + sum[o + x];
+						if (poissonNoise) v = poisson(v, random);
+						if (readNoise > 0) v += readNoise * random.nextGaussian();
+						plane[y * width + x] = (short) Math.max(0, Math.min(65535, Math.round(
+							v)));
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			}
+			catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while rendering beads", exc);
+			}
+			catch (ExecutionException exc) {
+				throw new RuntimeException("Rendering beads failed", exc.getCause());
+			}
+		}
+		return planes;
+	}
+
+	/**
+	 * Draws from a Poisson distribution of mean {@code mean}, approximated by a
+	 * normal distribution for large means.
+	 */
+	private static double poisson(double mean, Noise random) {
+		if (mean <= 0) return 0;
+		if (mean > 30) {
+			return Math.max(0, Math.round(mean + Math.sqrt(mean) * random
+				.nextGaussian()));
+		}
+		double limit = Math.exp(-mean), p = random.nextDouble();
+		int k = 0;
+		while (p > limit) {
+			p *= random.nextDouble();
+			k++;
+		}
+		return k;
+	}
+
+	/**
+	 * A fast, non-synchronized source of uniform and Gaussian random numbers.
+	 */
+	private static class Noise {
+
+		private final SplittableRandom random;
+		private double nextGaussian;
+		private boolean haveNextGaussian;
+
+		private Noise(long seed) {
+			random = new SplittableRandom(seed);
+		}
+
+		private double nextDouble() {
+			return random.nextDouble();
+		}
+
+		/** Draws standard normal numbers in pairs, with the polar method. */
+		private double nextGaussian() {
+			if (haveNextGaussian) {
+				haveNextGaussian = false;
+				return nextGaussian;
+			}
+			double u, v, s;
+			do {
+				u = 2 * random.nextDouble() - 1;
+				v = 2 * random.nextDouble() - 1;
+				s = u * u + v * v;
+			}
+			while (s >= 1 || s == 0);
+			double factor = Math.sqrt(-2 * Math.log(s) / s);
+			nextGaussian = v * factor;
+			haveNextGaussian = true;
+			return u * factor;
+		}
+	}
+}
@@ -1,11 +1,22 @@
 
 package ch.fmi.util;
 
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.detection.DetectorKeys;
@@ -24,13 +35,113 @@ public class Beads {
 		return getSpotModel(imp, channel, radius, threshold).getSpots();
 	}
 
-	public static <T extends RealType<T> & NativeType<T>> Model getSpotModel(ImagePlus imp, int channel, double radius,
+	/**
+	 * Returns a new collection with the visible spots of {@code candidates}
+	 * having a quality of at least {@code threshold}. As the LoG detector
+	 * thresholds on quality, this is equivalent to detecting with the higher
+	 * threshold, without filtering the image again.
+	 */
+	public static SpotCollection filterByQuality(SpotCollection candidates,
+		double threshold)
+	{
+		SpotCollection filtered = new SpotCollection();
+		for (Integer frame : candidates.keySet()) {
+			for (Spot spot : candidates.iterable(frame, true)) {
+				if (spot.getFeature(Spot.QUALITY) >= threshold) {
+					filtered.add(spot, frame);
+				}
+			}
+		}
+		filtered.setVisible(true);
+		return filtered;
+	}
+
+	/**
+	 * Detects beads in several channels concurrently, running one TrackMate
+	 * instance per channel and sharing the available processors among them.
+	 *
+	 * @return the spot collections keyed by (1-based) channel, in the order of
+	 *         {@code channels}
+	 */
+	public static Map<Integer, SpotCollection> getSpotCollections(ImagePlus imp,
+		int[] channels, double[] radius, double[] threshold)
+	{
+		return getSpotCollections(imp, channels, radius, threshold, Runtime
+			.getRuntime().availableProcessors());
+	}
+
+	public static Map<Integer, SpotCollection> getSpotCollections(ImagePlus imp,
+		int[] channels, double[] radius, double[] threshold, int numThreads)
+	{
+		if (radius.length != channels.length || threshold.length != channels.length) {
+			throw new IllegalArgumentException(
+				"Expected one radius and threshold per channel.");
+		}
+		int threadsPerChannel = Math.max(1, numThreads / channels.length);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math
+			.min(channels.length, numThreads)));
+		try {
+			List<Future<Model>> futures = new ArrayList<>();
+			for (int i = 0; i < channels.length; i++) {
+				final int index = i;
+				futures.add(executor.submit(() -> getSpotModel(imp, channels[index],
+					radius[index], threshold[index], threadsPerChannel)));
+			}
+			Map<Integer, SpotCollection> collections = new LinkedHashMap<>();
+			for (int i = 0; i < channels.length; i++) {
+				collections.put(channels[i], futures.get(i).get().getSpots());
+			}
+			return collections;
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Bead detection was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new RuntimeException("Bead detection failed", exc.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public static Model getSpotModel(ImagePlus imp, int channel, double radius,
 		double threshold)
+	{
+		return getSpotModel(imp, channel, radius, threshold, Runtime.getRuntime()
+			.availableProcessors());
+	}
+
+	public static Model getSpotModel(ImagePlus imp, int channel, double radius,
+		double threshold, int numThreads)
+	{
+		return getSpotModel(imp, channel, radius, threshold, numThreads, null, 0,
+			imp.getNSlices() - 1);
+	}
+
+	/**
+	 * Detects beads within part of the image only, e.g. for a quick preview.
+	 *
+	 * @param region the xy bounds to process, or {@code null} for the whole
+	 *          image (or its ROI)
+	 * @param zMin the first (0-based) slice to process
+	 * @param zMax the last (0-based) slice to process
+	 */
+	public static <T extends RealType<T> & NativeType<T>> Model getSpotModel(ImagePlus imp, int channel, double radius,
+		double threshold, int numThreads, Rectangle region, int zMin, int zMax)
 	{
 		Model model = new Model();
 
 		Settings settings = new Settings();
 		settings.setFrom(imp);
+		if (region != null) {
+			settings.xstart = Math.max(0, region.x);
+			settings.xend = Math.min(imp.getWidth(), region.x + region.width) - 1;
+			settings.ystart = Math.max(0, region.y);
+			settings.yend = Math.min(imp.getHeight(), region.y + region.height) - 1;
+		}
+		settings.zstart = Math.max(0, zMin);
+		settings.zend = Math.min(imp.getNSlices() - 1, zMax);
 		settings.detectorFactory = new LogDetectorFactory<T>();
 		settings.detectorSettings = settings.detectorFactory.getDefaultSettings();
 		settings.detectorSettings.put(DetectorKeys.KEY_DO_SUBPIXEL_LOCALIZATION,
@@ -40,6 +151,7 @@ public class Beads {
 		settings.detectorSettings.put(DetectorKeys.KEY_THRESHOLD, threshold);
 
 		TrackMate trackmate = new TrackMate(model, settings);
+		trackmate.setNumThreads(numThreads);
 
 		if (trackmate.execDetection() && trackmate.execInitialSpotFiltering() && trackmate.computeSpotFeatures(false) && trackmate.execSpotFiltering(false)) {
 			return model;
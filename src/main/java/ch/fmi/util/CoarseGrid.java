@@ -0,0 +1,52 @@
+package ch.fmi.util;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Helpers for maps of smooth fields that are sampled on a coarse grid, at
+ * every {@code step}-th pixel, instead of at every pixel.
+ */
+public final class CoarseGrid {
+
+	private CoarseGrid() {
+		// avoid instantiation of utility class
+	}
+
+	/**
+	 * Returns the number of grid nodes needed to cover an image of the given
+	 * dimensions, such that the last node is at or beyond the last pixel.
+	 */
+	public static long[] dimensions(long[] dims, int step) {
+		long[] grid = new long[dims.length];
+		for (int d = 0; d < dims.length; d++) {
+			grid[d] = (dims[d] - 1 + step - 1) / step + 1;
+		}
+		return grid;
+	}
+
+	/**
+	 * Returns a lazy view of {@code coarse}, whose pixel {@code i} is at
+	 * position {@code i * step}, linearly interpolated to all pixels of an
+	 * image of the given dimensions. Nothing is computed until the view is
+	 * accessed.
+	 */
+	public static <T extends RealType<T>> RandomAccessibleInterval<T> upsample(
+		RandomAccessibleInterval<T> coarse, int step, long... dims)
+	{
+		int n = coarse.numDimensions();
+		AffineTransform scale = new AffineTransform(n);
+		for (int d = 0; d < n; d++) {
+			scale.set(step, d, d);
+		}
+		RandomAccessible<T> upsampled = RealViews.affine(Views.interpolate(Views
+			.extendBorder(coarse), new NLinearInterpolatorFactory<T>()), scale);
+		return Views.interval(upsampled, new FinalInterval(dims));
+	}
+}
@@ -0,0 +1,117 @@
+package ch.fmi.util;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+/**
+ * A compact list of 3D points with a quality value each, stored as primitive
+ * arrays (one per coordinate) instead of one object per point.
+ */
+public class PointCloud {
+
+	private double[] x;
+	private double[] y;
+	private double[] z;
+	private double[] quality;
+	private int size;
+
+	public PointCloud() {
+		this(16);
+	}
+
+	public PointCloud(int capacity) {
+		capacity = Math.max(1, capacity);
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		quality = new double[capacity];
+	}
+
+	public void add(double px, double py, double pz, double q) {
+		if (size == x.length) {
+			int capacity = 2 * size;
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			z = Arrays.copyOf(z, capacity);
+			quality = Arrays.copyOf(quality, capacity);
+		}
+		x[size] = px;
+		y[size] = py;
+		z[size] = pz;
+		quality[size] = q;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double x(int i) {
+		return x[i];
+	}
+
+	public double y(int i) {
+		return y[i];
+	}
+
+	public double z(int i) {
+		return z[i];
+	}
+
+	public double quality(int i) {
+		return quality[i];
+	}
+
+	/**
+	 * Writes the position of point {@code i} to {@code position}, omitting z if
+	 * {@code position} has two elements only.
+	 */
+	public void localize(int i, double[] position) {
+		position[0] = x[i];
+		position[1] = y[i];
+		if (position.length > 2) position[2] = z[i];
+	}
+
+	/**
+	 * Returns the points with a quality of at least {@code threshold}.
+	 */
+	public PointCloud filterByQuality(double threshold) {
+		PointCloud filtered = new PointCloud(size);
+		for (int i = 0; i < size; i++) {
+			if (quality[i] >= threshold) {
+				filtered.add(x[i], y[i], z[i], quality[i]);
+			}
+		}
+		return filtered;
+	}
+
+	/**
+	 * Creates a point cloud from the spots of all frames of {@code spots}.
+	 * Spots without quality get a quality of {@code NaN}.
+	 */
+	public static PointCloud fromSpots(SpotCollection spots,
+		boolean visibleOnly)
+	{
+		PointCloud cloud = new PointCloud(spots.getNSpots(visibleOnly));
+		for (Spot spot : spots.iterable(visibleOnly)) {
+			Double q = spot.getFeature(Spot.QUALITY);
+			cloud.add(spot.getDoublePosition(0), spot.getDoublePosition(1), spot
+				.getDoublePosition(2), q == null ? Double.NaN : q);
+		}
+		return cloud;
+	}
+
+	/**
+	 * Creates visible spots of the given radius for all points, in frame 0.
+	 */
+	public SpotCollection toSpots(double radius) {
+		SpotCollection spots = new SpotCollection();
+		for (int i = 0; i < size; i++) {
+			spots.add(new Spot(x[i], y[i], z[i], radius, quality[i]), 0);
+		}
+		spots.setVisible(true);
+		return spots;
+	}
+}
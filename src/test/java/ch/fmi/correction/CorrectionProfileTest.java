@@ -0,0 +1,58 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.Translation3D;
+
+import org.junit.Test;
+
+public class CorrectionProfileTest {
+
+	@Test
+	public void testPixelTransforms() {
+		CorrectionProfile profile = new CorrectionProfile(null, new Translation3D(
+			1.0, 2.0, 3.0));
+		double[] spacing = { 0.5, 0.5, 2.0 };
+
+		assertNull(profile.pixelTransform(0, spacing));
+		assertNull(profile.pixelTransform(2, spacing));
+
+		double[] pixel = new double[3];
+		profile.pixelTransform(1, spacing).apply(new double[] { 0, 0, 0 }, pixel);
+		assertArrayEquals(new double[] { 2.0, 4.0, 1.5 }, pixel, 1e-10);
+		profile.inversePixelTransform(1, spacing).apply(pixel, pixel);
+		assertArrayEquals(new double[] { 0, 0, 0 }, pixel, 1e-10);
+	}
+
+	@Test
+	public void testCache() {
+		CorrectionProfile profile = new CorrectionProfile(new Translation3D(1.0,
+			0.0, 0.0));
+		AffineGet first = profile.pixelTransform(0, 0.2, 0.2, 1.0);
+		assertSame(first, profile.pixelTransform(0, new double[] { 0.2, 0.2,
+			1.0 }));
+		assertSame(profile.inversePixelTransform(0, 0.2, 0.2, 1.0), profile
+			.inversePixelTransform(0, 0.2, 0.2, 1.0));
+	}
+
+	@Test
+	public void test2DTransform() {
+		AffineTransform2D affine = new AffineTransform2D();
+		affine.set(0.0, -1.0, 10.0, 1.0, 0.0, 20.0);
+		CorrectionProfile profile = new CorrectionProfile(affine);
+
+		AffineGet transform = profile.pixelTransform(0, 0.5, 0.5, 2.0);
+		assertEquals(3, transform.numDimensions());
+		double[] pixel = new double[3];
+		transform.apply(new double[] { 2, 4, 7 }, pixel);
+		assertArrayEquals(new double[] { 16.0, 42.0, 7.0 }, pixel, 1e-10);
+
+		assertArrayEquals(affine.getRowPackedCopy(), CorrectionProfile.toAffine2D(
+			profile.affine(0)).getRowPackedCopy(), 0.0);
+	}
+}
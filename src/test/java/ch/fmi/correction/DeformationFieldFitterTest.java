@@ -0,0 +1,63 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ch.fmi.transform.DeformationField;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+public class DeformationFieldFitterTest {
+
+	@Test
+	public void testQuadraticWarp() {
+		// beads on a unit grid, displaced by a known quadratic warp
+		List<PointMatch> matches = new ArrayList<>();
+		for (int z = 0; z <= 6; z++) {
+			for (int y = 0; y <= 30; y++) {
+				for (int x = 0; x <= 30; x++) {
+					double[] p = { x, y, z };
+					matches.add(new PointMatch(new Point(p), new Point(warp(p))));
+				}
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		DeformationField field;
+		try {
+			field = DeformationFieldFitter.fit(new AffineModel3D(), matches,
+				new int[] { 7, 7, 3 }, new double[3], new double[] { 5, 5, 3 }, 1.5,
+				executor, 8);
+		}
+		finally {
+			executor.shutdown();
+		}
+		// away from the border, smoothing only adds the kernel variance times
+		// the curvature (0.002 * 1.5^2)
+		float[] u = field.displacements();
+		for (int z = 0; z < 3; z++) {
+			for (int y = 1; y < 6; y++) {
+				for (int x = 1; x < 6; x++) {
+					double[] node = { 5 * x, 5 * y, 3 * z };
+					double[] expected = warp(node);
+					int i = 3 * ((z * 7 + y) * 7 + x);
+					for (int d = 0; d < 3; d++) {
+						assertEquals(expected[d] - node[d], u[i + d], 0.01);
+					}
+				}
+			}
+		}
+	}
+
+	private static double[] warp(double[] p) {
+		double dx = p[0] - 15, dy = p[1] - 15;
+		return new double[] { p[0] + 0.002 * dx * dx, p[1] + 0.001 * dx * dy,
+			p[2] - 0.002 * dy * dy };
+	}
+}
@@ -0,0 +1,72 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.fmi.util.PointCloud;
+import mpicbg.models.TranslationModel3D;
+import process.ComparePair;
+
+public class DescriptorMatcherTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testTranslatedClouds() {
+		Random random = new Random(1);
+		double[][] shifts = { { 0, 0, 0 }, { 1.5, -2.0, 0.7 }, { -3.0, 1.0,
+			-0.5 } };
+		double[][] beads = new double[1000][];
+		for (int i = 0; i < beads.length; i++) {
+			beads[i] = new double[] { 500 * random.nextDouble(), 500 * random
+				.nextDouble(), 100 * random.nextDouble() };
+		}
+		List<PointCloud> clouds = new ArrayList<>();
+		for (double[] shift : shifts) {
+			PointCloud cloud = new PointCloud();
+			for (double[] bead : beads) {
+				if (random.nextDouble() < 0.1) continue; // missed detection
+				cloud.add(bead[0] + shift[0], bead[1] + shift[1], bead[2] + shift[2],
+					1.0);
+			}
+			clouds.add(cloud);
+		}
+
+		DescriptorMatcher matcher = new DescriptorMatcher(executor, 8);
+		matcher.setRansacThreshold(0.5);
+		Vector<ComparePair> pairs = matcher.match(clouds, new TranslationModel3D());
+
+		assertEquals(3, pairs.size());
+		for (ComparePair pair : pairs) {
+			assertTrue(pair.inliers.size() > 100);
+			double[] expected = new double[3];
+			for (int d = 0; d < 3; d++) {
+				expected[d] = shifts[pair.indexB][d] - shifts[pair.indexA][d];
+			}
+			assertArrayEquals(expected, ((TranslationModel3D) pair.model)
+				.getTranslation(), 1e-6);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+public class DisplacementMapTest {
+
+	@Test
+	public void testFill() {
+		// displacement of x' = 1.1 x + 0.2 z + 3, y' = y - 1, z' = 0.9 z
+		double[] m = { 0.1, 0, 0.2, 3, 0, 0, 0, -1, 0, 0, -0.1, 0 };
+		int width = 7, height = 5, depth = 4, step = 2;
+		Object[][] planes = new Object[3][depth];
+		for (int z = 0; z < depth; z++) {
+			planes[0][z] = new double[width * height];
+			planes[1][z] = new float[width * height];
+			planes[2][z] = new double[width * height];
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			DisplacementMap.fill(m, step, width, height, planes, executor, 3);
+		}
+		finally {
+			executor.shutdown();
+		}
+		for (int z = 0; z < depth; z++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int i = y * width + x;
+					assertEquals(0.1 * x * step + 0.2 * z * step + 3,
+						((double[]) planes[0][z])[i], 1e-10);
+					assertEquals(-1, ((float[]) planes[1][z])[i], 0);
+					assertEquals(-0.1 * z * step, ((double[]) planes[2][z])[i], 1e-10);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLazy() {
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.set(1.1, 0, 0.2, 3, 0, 1, 0, -1, 0, 0, 0.9, 0);
+
+		RandomAccessibleInterval<DoubleType> dx = DisplacementMap.lazy(affine, 0,
+			7, 5, 4);
+		assertEquals(4, dx.dimension(2));
+		RandomAccess<DoubleType> access = dx.randomAccess();
+		access.setPosition(new long[] { 2, 1, 3 });
+		assertEquals(0.1 * 2 + 0.2 * 3 + 3, access.get().get(), 1e-10);
+
+		RandomAccess<FloatType> stacked = DisplacementMap.lazyStack(affine, 7, 5,
+			4, 3).randomAccess();
+		stacked.setPosition(new long[] { 2, 1, 3, 2 });
+		assertEquals(-0.1 * 3, stacked.get().get(), 1e-6);
+		stacked.setPosition(1, 3);
+		assertEquals(-1, stacked.get().get(), 1e-6);
+	}
+}
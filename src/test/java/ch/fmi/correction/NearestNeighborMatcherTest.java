@@ -0,0 +1,61 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.fmi.util.PointCloud;
+import mpicbg.models.TranslationModel3D;
+import process.ComparePair;
+
+public class NearestNeighborMatcherTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testNearlyAlignedClouds() {
+		Random random = new Random(1);
+		double[] shift = { 0.5, -0.4, 0.3 };
+		PointCloud reference = new PointCloud();
+		PointCloud shifted = new PointCloud();
+		for (int i = 0; i < 2000; i++) {
+			double x = 500 * random.nextDouble();
+			double y = 500 * random.nextDouble();
+			double z = 100 * random.nextDouble();
+			reference.add(x, y, z, 1.0);
+			shifted.add(x + shift[0] + 0.01 * random.nextGaussian(), y + shift[1] +
+				0.01 * random.nextGaussian(), z + shift[2] + 0.01 * random
+					.nextGaussian(), 1.0);
+		}
+
+		NearestNeighborMatcher matcher = new NearestNeighborMatcher(executor, 8);
+		matcher.setMaxDistance(1.5);
+		Vector<ComparePair> pairs = matcher.match(Arrays.asList(reference,
+			shifted), new TranslationModel3D());
+
+		assertEquals(1, pairs.size());
+		assertTrue(pairs.get(0).inliers.size() > 1900);
+		assertArrayEquals(shift, ((TranslationModel3D) pairs.get(0).model)
+			.getTranslation(), 1e-3);
+	}
+}
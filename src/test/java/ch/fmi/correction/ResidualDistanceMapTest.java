@@ -0,0 +1,93 @@
+package ch.fmi.correction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.KDTree;
+import net.imglib2.RandomAccess;
+import net.imglib2.RealPoint;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.junit.Test;
+
+import ch.fmi.util.CoarseGrid;
+
+public class ResidualDistanceMapTest {
+
+	private final List<double[]> residuals = Arrays.asList(new double[] { 1, 0,
+		0 }, new double[] { 0, 2, 0 }, new double[] { 0, 0, 4 });
+	private final List<RealPoint> positions = Arrays.asList(new RealPoint(0, 0,
+		0), new RealPoint(4, 0, 0), new RealPoint(0, 0, 2));
+
+	@Test
+	public void testInterpolator() {
+		KDTree<double[]> tree = new KDTree<>(residuals, positions);
+		double[] value = new double[3];
+
+		new ResidualDistanceMap.Interpolator(tree, 1, 0).interpolate(new double[] {
+			3, 0, 0 }, value);
+		assertArrayEquals(new double[] { 0, 2, 0 }, value, 0);
+
+		new ResidualDistanceMap.Interpolator(tree, 3, 0).interpolate(new double[] {
+			3, 0, 0 }, value);
+		assertArrayEquals(new double[] { 1 / 3.0, 2 / 3.0, 4 / 3.0 }, value, 1e-10);
+
+		// inverse distance weighting reproduces the samples at their positions
+		ResidualDistanceMap.Interpolator idw = new ResidualDistanceMap.Interpolator(
+			tree, 3, 2);
+		idw.interpolate(new double[] { 0, 0, 2 }, value);
+		assertArrayEquals(new double[] { 0, 0, 4 }, value, 0);
+		idw.interpolate(new double[] { 2, 0, 0 }, value);
+		assertEquals(0.25 / (0.25 + 0.25 + 0.125), value[0], 1e-10);
+	}
+
+	@Test
+	public void testRasterize() {
+		KDTree<double[]> tree = new KDTree<>(residuals, positions);
+		PlanarImg<DoubleType, DoubleArray> img = PlanarImgs.doubles(5, 2, 3, 3);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ResidualDistanceMap.rasterize(tree, 1, 0, 1, img, executor, 4);
+		}
+		finally {
+			executor.shutdown();
+		}
+		RandomAccess<DoubleType> access = img.randomAccess();
+		access.setPosition(new long[] { 4, 1, 0, 1 });
+		assertEquals(2, access.get().get(), 0);
+		access.setPosition(new long[] { 0, 1, 2, 2 });
+		assertEquals(4, access.get().get(), 0);
+		access.setPosition(new long[] { 1, 0, 0, 0 });
+		assertEquals(1, access.get().get(), 0);
+	}
+
+	@Test
+	public void testRasterizeCoarseGrid() {
+		KDTree<double[]> tree = new KDTree<>(residuals, positions);
+		long[] dims = CoarseGrid.dimensions(new long[] { 5, 2, 3 }, 2);
+		assertArrayEquals(new long[] { 3, 2, 2 }, dims);
+		PlanarImg<DoubleType, DoubleArray> img = PlanarImgs.doubles(dims[0],
+			dims[1], dims[2], 3);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ResidualDistanceMap.rasterize(tree, 1, 0, 2, img, executor, 4);
+		}
+		finally {
+			executor.shutdown();
+		}
+		// node (2, 0, 0) is at pixel (4, 0, 0)
+		RandomAccess<DoubleType> access = img.randomAccess();
+		access.setPosition(new long[] { 2, 0, 0, 1 });
+		assertEquals(2, access.get().get(), 0);
+		access.setPosition(new long[] { 0, 0, 1, 2 });
+		assertEquals(4, access.get().get(), 0);
+	}
+}
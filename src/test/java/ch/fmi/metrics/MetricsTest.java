@@ -0,0 +1,37 @@
+package ch.fmi.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testSummaryAndJson() {
+		Metrics metrics = new Metrics("Test \"command\"");
+		metrics.stop("matching", System.nanoTime() - 2000000);
+		metrics.stop("saving", System.nanoTime());
+		metrics.stop("matching", System.nanoTime() - 1000000);
+		metrics.count("inliers", 40);
+		metrics.count("inliers", 2);
+
+		assertTrue(metrics.timers().get("matching") >= 3000000);
+		assertEquals(42L, (long) metrics.counters().get("inliers"));
+		assertTrue(metrics.summary().matches(
+			"matching \\d+\\.\\d ms, saving \\d+\\.\\d ms; inliers 42"));
+		assertTrue(metrics.toJson().matches("\\{\"command\":\"Test \\\\\"command\\\\\"\"," +
+			"\"timestamp\":\"[^\"]+\",\"timers_ms\":\\{\"matching\":[0-9.E]+," +
+			"\"saving\":[0-9.E-]+\\},\"counters\":\\{\"inliers\":42\\}\\}"));
+	}
+
+	@Test
+	public void testDisabled() {
+		Metrics metrics = Metrics.DISABLED;
+		assertEquals(0, metrics.start());
+		metrics.stop("matching", 0);
+		metrics.count("inliers", 1);
+		assertTrue(metrics.timers().isEmpty());
+		assertTrue(metrics.counters().isEmpty());
+	}
+}
@@ -0,0 +1,63 @@
+package ch.fmi.transform.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DefaultTransformRegistryServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final DefaultTransformRegistryService registry =
+		new DefaultTransformRegistryService();
+
+	@After
+	public void dispose() {
+		registry.dispose();
+	}
+
+	@Test
+	public void testReloadAfterModification() throws IOException {
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.translate(1.0, 2.0, 3.0);
+		TransformContainer container = new TransformContainer();
+		container.put("C2-beads", affine);
+		File file = folder.newFile("test.transforms");
+		container.write(file.toPath());
+		Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(1000));
+
+		AffineGet first = registry.get(file.toPath(), "C2-beads");
+		AffineGet second = registry.get(file.toPath(), "C2-beads");
+		assertNotSame(first, second);
+		assertArrayEquals(affine.getRowPackedCopy(), second.getRowPackedCopy(), 0);
+		assertArrayEquals(affine.getRowPackedCopy(), registry.get(file.toPath())
+			.getRowPackedCopy(), 0);
+		assertNull(registry.get(file.toPath(), "C3-beads"));
+
+		affine.translate(1.0, 1.0, 1.0);
+		container.put("C2-beads", affine);
+		container.write(file.toPath());
+		Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(2000));
+		assertArrayEquals(affine.getRowPackedCopy(), registry.get(file.toPath(),
+			"C2-beads").getRowPackedCopy(), 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingFile() throws IOException {
+		registry.get(new File(folder.getRoot(), "missing.transform").toPath());
+	}
+}
@@ -0,0 +1,69 @@
+package ch.fmi.transform.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransformContainerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		AffineTransform3D affine3D = new AffineTransform3D();
+		affine3D.translate(1.0, 2.0, 3.0);
+		AffineTransform2D affine2D = new AffineTransform2D();
+		affine2D.translate(-1.0, 0.5);
+		TransformContainer container = new TransformContainer();
+		container.put("C2-pos1", affine3D);
+		container.put("C3-pos1", affine2D);
+		container.put("C2-pos2 (\u00b5m)", affine3D);
+
+		File file = folder.newFile("test.transforms");
+		container.write(file.toPath());
+		TransformContainer read = TransformContainer.read(file.toPath());
+
+		assertEquals(Arrays.asList("C2-pos1", "C3-pos1", "C2-pos2 (\u00b5m)"),
+			Arrays.asList(read.names().toArray()));
+		assertTrue(read.get("C3-pos1") instanceof AffineTransform2D);
+		assertArrayEquals(affine3D.getRowPackedCopy(), read.get("C2-pos2 (\u00b5m)")
+			.getRowPackedCopy(), 0.0);
+		assertArrayEquals(affine2D.getRowPackedCopy(), read.get("C3-pos1")
+			.getRowPackedCopy(), 0.0);
+	}
+
+	@Test
+	public void testSingleTransformFile() throws IOException {
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.translate(4.0, 5.0, 6.0);
+		File file = folder.newFile("C2-beads.transform");
+		try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(
+			file)))
+		{
+			dos.writeInt(3);
+			for (double d : affine.getRowPackedCopy()) {
+				dos.writeDouble(d);
+			}
+		}
+
+		assertEquals(3, TransformContainer.peekDimensions(file.toPath()));
+		TransformContainer read = TransformContainer.read(file.toPath());
+		assertEquals(1, read.size());
+		assertArrayEquals(affine.getRowPackedCopy(), read.get("C2-beads")
+			.getRowPackedCopy(), 0.0);
+	}
+}
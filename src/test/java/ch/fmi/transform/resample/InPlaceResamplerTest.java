@@ -0,0 +1,111 @@
+package ch.fmi.transform.resample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+public class InPlaceResamplerTest {
+
+	private static final int WIDTH = 12;
+	private static final int HEIGHT = 9;
+	private static final int DEPTH = 20;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testMatchesResampling() {
+		AffineTransform3D up = new AffineTransform3D();
+		up.set(1, 0, 0, 0.5, 0, 1, 0, -0.25, 0, 0, 1, 2.5);
+		AffineTransform3D down = new AffineTransform3D();
+		down.set(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, -3.7);
+		AffineTransform3D tilted = new AffineTransform3D();
+		tilted.set(1.01, 0.02, 0, -0.3, -0.02, 1.01, 0.1, 0.2, 0.05, 0, 0.99, 0.4);
+		AffineTransform3D flipped = new AffineTransform3D();
+		flipped.set(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, -1, DEPTH - 1.5);
+		for (AffineTransform3D transform : new AffineTransform3D[] { up, down,
+			tilted, flipped })
+		{
+			for (int slabDepth : new int[] { 1, 3, 32 }) {
+				assertInPlace(transform, slabDepth, DEPTH);
+			}
+		}
+	}
+
+	@Test
+	public void test2D() {
+		AffineTransform2D transform = new AffineTransform2D();
+		transform.set(0.98, 0.05, 1.3, -0.05, 0.98, -0.6);
+		assertInPlace(transform, 2, 1);
+	}
+
+	@Test
+	public void testBufferBoundedByZExtent() {
+		AffineTransform3D shift = new AffineTransform3D();
+		shift.set(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 2.5);
+		InPlaceResampler resampler = new InPlaceResampler(new ResamplingEngine(
+			executor, 4), 2);
+		resampler.resample(planes(new Random(1), DEPTH), WIDTH, HEIGHT, shift);
+		// slab depth plus the planes held back for the 2.5 plane shift
+		assertTrue(resampler.allocatedPlanes() <= 2 + 4);
+	}
+
+	private void assertInPlace(AffineGet transform, int slabDepth, int depth) {
+		short[][] planes = planes(new Random(slabDepth), depth);
+		short[][] expected = new short[depth][WIDTH * HEIGHT];
+		ResamplingEngine engine = new ResamplingEngine(executor, 4);
+		if (transform.numDimensions() == 2) {
+			engine.resample(Planes.wrap(image(planes[0]), 0), transform, Planes.wrap(
+				image(expected[0]), 0));
+		}
+		else {
+			engine.resample(Planes.wrap(WIDTH, HEIGHT, (Object[]) planes), transform,
+				Planes.wrap(WIDTH, HEIGHT, (Object[]) expected));
+		}
+		new InPlaceResampler(engine, slabDepth).resample(planes, WIDTH, HEIGHT,
+			transform);
+		// interpolation relative to the slabs may round differently
+		for (int z = 0; z < depth; z++) {
+			for (int i = 0; i < expected[z].length; i++) {
+				assertEquals(expected[z][i], planes[z][i], 1);
+			}
+		}
+	}
+
+	private static ImagePlus image(short[] pixels) {
+		return new ImagePlus("", new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+	}
+
+	private static short[][] planes(Random random, int depth) {
+		short[][] planes = new short[depth][WIDTH * HEIGHT];
+		for (short[] plane : planes) {
+			for (int i = 0; i < plane.length; i++) {
+				plane[i] = (short) random.nextInt(4096);
+			}
+		}
+		return planes;
+	}
+}
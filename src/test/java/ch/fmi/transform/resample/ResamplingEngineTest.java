@@ -0,0 +1,194 @@
+package ch.fmi.transform.resample;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.fmi.transform.DeformationField;
+
+public class ResamplingEngineTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(3);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testSlabs() {
+		Interval interval = new FinalInterval(new long[] { 0, 0, 2 }, new long[] { 9, 9, 8 });
+		List<Interval> slabs = ResamplingEngine.slabs(interval, 3);
+		assertEquals(3, slabs.size());
+		assertEquals(2, slabs.get(0).min(2));
+		assertEquals(8, slabs.get(2).max(2));
+		long total = 0;
+		for (Interval slab : slabs) {
+			assertEquals(9, slab.max(0));
+			total += slab.dimension(2);
+		}
+		assertEquals(7, total);
+		assertEquals(7, ResamplingEngine.slabs(interval, 20).size());
+	}
+
+	@Test
+	public void testResampleTranslation() {
+		Img<FloatType> source = ramp(12, 10, 8);
+		Img<FloatType> target = ArrayImgs.floats(12, 10, 8);
+		new ResamplingEngine(executor, 5).resample(source, new Translation3D(1, 0.5, 0), target);
+
+		RandomAccess<FloatType> sourceAccess = source.randomAccess();
+		Cursor<FloatType> cursor = target.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			int x = cursor.getIntPosition(0);
+			int y = cursor.getIntPosition(1);
+			if (x == 0 || y == 0) continue;
+			sourceAccess.setPosition(new long[] { x - 1, y - 1, cursor.getLongPosition(2) });
+			float expected = 0.5f * sourceAccess.get().get();
+			sourceAccess.fwd(1);
+			expected += 0.5f * sourceAccess.get().get();
+			assertEquals(expected, cursor.get().get(), 1e-4f);
+		}
+		assertEquals(0, target.firstElement().get(), 0);
+	}
+
+	@Test
+	public void testPlanesMatchGenericInterpolation() {
+		Img<UnsignedShortType> source = ArrayImgs.unsignedShorts(21, 17, 9);
+		Random random = new Random(42);
+		source.forEach(t -> t.set(random.nextInt(65536)));
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.rotate(2, 0.1);
+		affine.scale(1.05);
+		affine.translate(1.3, -2.2, 0.6);
+
+		Img<UnsignedShortType> target = ArrayImgs.unsignedShorts(21, 17, 9);
+		new ResamplingEngine(executor, 4).resample(source, affine, target);
+
+		RandomAccess<UnsignedShortType> expected = RealViews.affine(Views
+			.interpolate(Views.extendZero(source),
+				new NLinearInterpolatorFactory<UnsignedShortType>()), affine)
+			.randomAccess();
+		Cursor<UnsignedShortType> cursor = target.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			expected.setPosition(cursor);
+			assertEquals(expected.get().get(), cursor.get().get(), 4);
+		}
+	}
+
+	@Test
+	public void testTranslations() {
+		Img<FloatType> source = ArrayImgs.floats(15, 11, 6);
+		Random random = new Random(7);
+		source.forEach(t -> t.set(100 * random.nextFloat()));
+		ResamplingEngine engine = new ResamplingEngine(executor, 3);
+		for (Translation3D translation : new Translation3D[] { new Translation3D(0,
+			0, 0), new Translation3D(2, -3, 1), new Translation3D(0.4, -1.7, 0.25) })
+		{
+			Img<FloatType> target = ArrayImgs.floats(15, 11, 6);
+			engine.resample(source, translation, target);
+
+			RandomAccess<FloatType> expected = RealViews.affine(Views.interpolate(
+				Views.extendZero(source), new NLinearInterpolatorFactory<FloatType>()),
+				translation).randomAccess();
+			Cursor<FloatType> cursor = target.localizingCursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				expected.setPosition(cursor);
+				assertEquals(expected.get().get(), cursor.get().get(), 1e-3f);
+			}
+		}
+	}
+
+	@Test
+	public void testDeformationFieldMatchesAffine() {
+		Img<FloatType> source = ArrayImgs.floats(23, 19, 7);
+		Random random = new Random(3);
+		source.forEach(t -> t.set(100 * random.nextFloat()));
+		AffineTransform3D affine = new AffineTransform3D();
+		affine.rotate(2, 0.05);
+		affine.translate(0.7, -1.2, 0.3);
+
+		// a linear displacement field is represented exactly on any grid
+		AffineTransform3D inverse = affine.inverse();
+		int[] dimensions = { 4, 3, 3 };
+		double[] spacing = { 22.0 / 3, 9.0, 3.0 };
+		float[] displacements = new float[3 * 4 * 3 * 3];
+		double[] node = new double[3];
+		double[] mapped = new double[3];
+		for (int i = 0; i < displacements.length / 3; i++) {
+			node[0] = (i % 4) * spacing[0];
+			node[1] = (i / 4 % 3) * spacing[1];
+			node[2] = (i / 12) * spacing[2];
+			inverse.apply(node, mapped);
+			for (int d = 0; d < 3; d++) {
+				displacements[3 * i + d] = (float) (mapped[d] - node[d]);
+			}
+		}
+		DeformationField field = new DeformationField(dimensions, new double[3],
+			spacing, displacements);
+
+		ResamplingEngine engine = new ResamplingEngine(executor, 3);
+		Img<FloatType> expected = ArrayImgs.floats(23, 19, 7);
+		engine.resample(Planes.wrap(source), affine, Planes.wrap(expected));
+		Img<FloatType> target = ArrayImgs.floats(23, 19, 7);
+		engine.resample(Planes.wrap(source), field, Planes.wrap(target));
+
+		Cursor<FloatType> e = expected.cursor();
+		Cursor<FloatType> t = target.cursor();
+		while (e.hasNext()) {
+			assertEquals(e.next().get(), t.next().get(), 1e-3f);
+		}
+	}
+
+	@Test
+	public void testCopy() {
+		Img<FloatType> source = ramp(7, 5, 3);
+		Img<FloatType> target = ArrayImgs.floats(7, 5, 3);
+		new ResamplingEngine(executor, 2).copy(source, target);
+		Cursor<FloatType> s = source.cursor();
+		Cursor<FloatType> t = target.cursor();
+		while (s.hasNext()) {
+			assertEquals(s.next().get(), t.next().get(), 0);
+		}
+	}
+
+	static Img<FloatType> ramp(long... dims) {
+		Img<FloatType> img = ArrayImgs.floats(dims);
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(cursor.getFloatPosition(0) + 3 * cursor.getFloatPosition(
+				1) + 7 * cursor.getFloatPosition(2));
+		}
+		return img;
+	}
+}
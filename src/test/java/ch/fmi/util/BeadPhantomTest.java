@@ -0,0 +1,62 @@
+package ch.fmi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.realtransform.AffineTransform2D;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BeadPhantomTest {
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	@After
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void testRenderBead() {
+		BeadPhantom phantom = phantom(3);
+		phantom.setPoissonNoise(false);
+		phantom.setBackground(0);
+		phantom.setReadNoise(0);
+		PointCloud beads = new PointCloud();
+		beads.add(10.2, 20.0, 5.0, 1000);
+		AffineTransform2D shift = new AffineTransform2D();
+		shift.set(1, 0, 3, 0, 1, -2);
+		short[][] planes = phantom.render(BeadPhantom.transform(beads, shift), 0);
+
+		// the bead is at (13.2, 18, 5) with sigma 1 laterally and 2 axially
+		assertEquals(Math.round(1000 * Math.exp(-0.02)), planes[5][18 * 64 + 13]);
+		assertEquals(Math.round(1000 * Math.exp(-0.02 - 0.125)), planes[4][18 * 64 +
+			13]);
+		// spots are cut off at three sigma
+		assertEquals(0, planes[5][18 * 64 + 17]);
+		assertEquals(0, planes[5][14 * 64 + 13]);
+	}
+
+	@Test
+	public void testReproducible() {
+		PointCloud beads = phantom(1).beads(50);
+		short[][] expected = phantom(1).render(beads, 1);
+		short[][] actual = phantom(7).render(beads, 1);
+		for (int z = 0; z < expected.length; z++) {
+			assertArrayEquals(expected[z], actual[z]);
+		}
+	}
+
+	private BeadPhantom phantom(int numTasks) {
+		BeadPhantom phantom = new BeadPhantom(executor, numTasks);
+		phantom.setDimensions(64, 32, 10);
+		phantom.setSigma(1, 2);
+		phantom.setReadNoise(5);
+		phantom.setSeed(3);
+		return phantom;
+	}
+}
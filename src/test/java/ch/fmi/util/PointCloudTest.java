@@ -0,0 +1,28 @@
+package ch.fmi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PointCloudTest {
+
+	@Test
+	public void testAddAndFilter() {
+		PointCloud cloud = new PointCloud(1);
+		for (int i = 0; i < 10; i++) {
+			cloud.add(i, 2 * i, 3 * i, 10 * i);
+		}
+		assertEquals(10, cloud.size());
+
+		double[] position = new double[3];
+		cloud.localize(4, position);
+		assertArrayEquals(new double[] { 4, 8, 12 }, position, 0.0);
+		assertEquals(40, cloud.quality(4), 0.0);
+
+		PointCloud filtered = cloud.filterByQuality(55);
+		assertEquals(4, filtered.size());
+		assertEquals(6, filtered.x(0), 0.0);
+		assertEquals(27, filtered.z(3), 0.0);
+	}
+}